@@ -0,0 +1,118 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import javax.annotation.CheckForNull;
+import java.util.List;
+
+/**
+ * Adapts the quiet period of branch projects to how often their branch is pushed to, within the
+ * {@link TemplateDrivenMultiBranchProject#getQuietPeriodMin() bounds} configured on the multi-branch project.
+ * <br>
+ * Every build that branch indexing or an SCM event schedules for a revision is recorded in the in-memory
+ * {@link PushCadence} of the branch, kept by its {@link BranchProjectProperty}, including pushes folded into a build
+ * that is already queued.  Branch projects wait the lower bound as their ordinary quiet period, and {@link Dispatcher}
+ * then holds their queued build until the branch has been quiet for the period derived from its cadence.  The quiet
+ * period therefore applies to the build being scheduled, and further pushes of a burst keep extending it, so the
+ * burst is folded into one build.  Nothing is saved.
+ *
+ * @author Matthew DeTullio
+ */
+@Extension
+public class AdaptiveQuietPeriod extends Queue.QueueDecisionHandler {
+
+    @Override
+    public boolean shouldSchedule(Queue.Task p, List<Action> actions) {
+        BranchProjectProperty<?, ?> property = adaptivePropertyOf(p);
+        if (property != null && BuildResultIndex.revisionOf(actions) != null) {
+            property.getCadence().record(System.currentTimeMillis());
+        }
+        return true;
+    }
+
+    /**
+     * Gets the property of a branch project whose parent adapts quiet periods.
+     *
+     * @param task the queued task
+     * @return the property, or null if the quiet period of the task is not adapted
+     */
+    @CheckForNull
+    private static BranchProjectProperty<?, ?> adaptivePropertyOf(Object task) {
+        if (!(task instanceof AbstractProject) || !(((AbstractProject<?, ?>) task).getParent()
+                instanceof TemplateDrivenMultiBranchProject)) {
+            return null;
+        }
+
+        AbstractProject<?, ?> project = (AbstractProject<?, ?>) task;
+        TemplateDrivenMultiBranchProject<?, ?> parent = (TemplateDrivenMultiBranchProject<?, ?>) project.getParent();
+        return parent.isAdaptiveQuietPeriod() ? project.getProperty(BranchProjectProperty.class) : null;
+    }
+
+    /**
+     * Holds queued builds scheduled for a revision until their branch has been quiet for its adapted quiet period.
+     * Only reads the in-memory cadence, so it is cheap to call under the queue lock.  Builds started by hand are never
+     * held.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class Dispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            BranchProjectProperty<?, ?> property = adaptivePropertyOf(item.task);
+            if (property == null || BuildResultIndex.revisionOf(item.getActions()) == null) {
+                return null;
+            }
+
+            TemplateDrivenMultiBranchProject<?, ?> parent =
+                    (TemplateDrivenMultiBranchProject<?, ?>) ((AbstractProject<?, ?>) item.task).getParent();
+            long remaining = property.getCadence().quietUntil(parent.getQuietPeriodMin(), parent.getQuietPeriodMax())
+                    - System.currentTimeMillis();
+            return remaining > 0L ? new InQuietPeriod(remaining) : null;
+        }
+    }
+
+    /**
+     * Shown for builds held until their branch is quiet.
+     */
+    public static final class InQuietPeriod extends CauseOfBlockage {
+        private final long remaining;
+
+        InQuietPeriod(long remaining) {
+            this.remaining = remaining;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return hudson.model.Messages.Queue_InQuietPeriod(Util.getTimeSpanString(remaining));
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.FilePath;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Item;
+import hudson.model.Items;
+import hudson.security.ACL;
+import hudson.util.DirScanner;
+import hudson.util.XStream2;
+import jenkins.branch.Branch;
+import jenkins.util.Timer;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Packs the directories of dead branch projects of a {@link TemplateDrivenMultiBranchProject} into one zip file each,
+ * so that branches that are gone no longer keep thousands of build files around.
+ * <br>
+ * Branch projects are archived a little while after indexing marks them {@link Branch.Dead}, when they are not
+ * building, and are then removed from the project through its trash directory (see {@link OrphanedDirectorySweeper}).
+ * A small index lists the archives without opening them.  An archive is unpacked again when its branch reappears, or
+ * on request from the archived branches page, into the directory it was packed from, which is not necessarily the
+ * branch project name (see {@link Entry#getDirName()}).  A branch project restored by hand while its branch is still
+ * dead is {@link BranchProjectProperty#isKept() kept}, so it is not archived again until its branch comes back and
+ * dies again.
+ *
+ * @author Matthew DeTullio
+ */
+public final class BranchArchive {
+
+    private static final String CLASSNAME = BranchArchive.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    private static final String INDEX_FILE = "index.xml";
+
+    private static final String EXTENSION = ".zip";
+
+    private static final long DELAY_MINUTES = 1L;
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("archived-branch", Entry.class);
+    }
+
+    private final TemplateDrivenMultiBranchProject<?, ?> project;
+
+    private final File dir;
+
+    private final XmlFile indexFile;
+
+    /**
+     * Archived branch project name to its description.  Guarded by this.
+     */
+    private Map<String, Entry> index;
+
+    /**
+     * Creates the archive of a project.
+     *
+     * @param project the multi-branch project
+     * @param dir     the directory holding the archives
+     */
+    BranchArchive(@Nonnull TemplateDrivenMultiBranchProject<?, ?> project, @Nonnull File dir) {
+        this.project = project;
+        this.dir = dir;
+        this.indexFile = new XmlFile(XSTREAM, new File(dir, INDEX_FILE));
+    }
+
+    /**
+     * Gets the archived branches, most recently archived first.  Used by Jelly.
+     *
+     * @return the archived branches
+     */
+    @Nonnull
+    public synchronized List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(index().values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o2.archived, o1.archived);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Gets whether a branch project has been archived.
+     *
+     * @param name the branch project name
+     * @return true if an archive exists
+     */
+    public synchronized boolean contains(@Nonnull String name) {
+        return index().containsKey(name);
+    }
+
+    /**
+     * Archives a dead branch project a little later, if it is still dead and idle by then.
+     *
+     * @param name the branch project name
+     */
+    void schedule(@Nonnull final String name) {
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+                try {
+                    archive(name);
+                } catch (IOException | InterruptedException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to archive " + name + " of " + project.getFullName(), e);
+                } finally {
+                    SecurityContextHolder.setContext(orig);
+                }
+            }
+        }, DELAY_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Packs a dead branch project into an archive and deletes it.
+     *
+     * @param name the branch project name
+     * @throws IOException          if the archive cannot be written
+     * @throws InterruptedException if interrupted while deleting
+     */
+    void archive(@Nonnull String name) throws IOException, InterruptedException {
+        Item item = project.getItem(name);
+        if (!(item instanceof AbstractProject) || !project.isArchiveDeadBranches()) {
+            return;
+        }
+
+        AbstractProject<?, ?> branchProject = (AbstractProject<?, ?>) item;
+        BranchProjectProperty<?, ?> property = branchProject.getProperty(BranchProjectProperty.class);
+        if (property == null || !(property.getBranch() instanceof Branch.Dead) || property.isKept()
+                || branchProject.isBuilding() || branchProject.isInQueue()) {
+            return;
+        }
+
+        BranchStatusIndex.Entry status = project.getStatusIndex().get(branchProject);
+        String dirName = branchProject.getRootDir().getName();
+        File zip = new File(dir, dirName + EXTENSION);
+        File tmp = new File(dir, dirName + EXTENSION + ".tmp");
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            new FilePath(branchProject.getRootDir()).zip(out, new DirScanner.Full());
+        }
+        if (zip.exists() && !zip.delete() || !tmp.renameTo(zip)) {
+            throw new IOException("Unable to move " + tmp + " to " + zip);
+        }
+
+        synchronized (this) {
+            index().put(name, new Entry(name, dirName, status.getDisplayName(), System.currentTimeMillis(),
+                    zip.length(), status.getLastBuildNumber(), status.getLastBuildTime()));
+            saveIndex();
+        }
+
+        // Throw the directory away in the background instead of deleting its builds while holding up the caller
+        File rootDir = branchProject.getRootDir();
+        if (OrphanedDirectorySweeper.moveToTrash(project, rootDir) == null) {
+            LOGGER.log(Level.FINE, "Unable to move {0} to the trash, deleting in place", rootDir);
+        }
+        branchProject.delete();
+        LOGGER.log(Level.FINE, "Archived {0} of {1}", new Object[]{name, project.getFullName()});
+    }
+
+    /**
+     * Unpacks an archived branch project into the directory it was archived from and removes the archive.  The
+     * project is not loaded or registered.
+     *
+     * @param name the branch project name
+     * @return the restored project directory, or null if the branch was not archived
+     * @throws IOException          if the archive cannot be read
+     * @throws InterruptedException if interrupted while unpacking
+     */
+    @CheckForNull
+    synchronized File restore(@Nonnull String name) throws IOException, InterruptedException {
+        Entry entry = index().get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        File zip = new File(dir, entry.getDirName() + EXTENSION);
+        File target = new File(project.getJobsDir(), entry.getDirName());
+        if (zip.isFile()) {
+            new FilePath(zip).unzip(new FilePath(target));
+        }
+
+        index().remove(name);
+        saveIndex();
+        if (zip.exists() && !zip.delete()) {
+            LOGGER.log(Level.WARNING, "Unable to delete restored archive {0}", zip);
+        }
+        return target.isDirectory() ? target : null;
+    }
+
+    /**
+     * Unpacks and loads an archived branch project.  The project is not registered with its parent.
+     *
+     * @param name the branch project name
+     * @return the loaded project, or null if the branch was not archived
+     * @throws IOException          if the archive cannot be read or the project cannot be loaded
+     * @throws InterruptedException if interrupted while unpacking
+     */
+    @CheckForNull
+    Item load(@Nonnull String name) throws IOException, InterruptedException {
+        File target = restore(name);
+        if (target == null) {
+            return null;
+        }
+
+        // Not Items.load, which would name the project after its directory
+        Item item = (Item) Items.getConfigFile(target).read();
+        item.onLoad(project, name);
+        return item;
+    }
+
+    private Map<String, Entry> index() {
+        if (index == null) {
+            index = new TreeMap<>();
+            if (indexFile.exists()) {
+                try {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Entry> read = (Map<String, Entry>) indexFile.read();
+                    index.putAll(read);
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Failed to read " + indexFile, e);
+                }
+            }
+        }
+        return index;
+    }
+
+    private void saveIndex() throws IOException {
+        indexFile.write(index);
+    }
+
+    /**
+     * Description of one archived branch project.
+     */
+    public static final class Entry {
+        private final String name;
+        /**
+         * Null when read from an older index, whose archives were named after the branch project.
+         */
+        private final String dirName;
+        private final String displayName;
+        private final long archived;
+        private final long size;
+        private final int lastBuildNumber;
+        private final long lastBuildTime;
+
+        Entry(String name, String dirName, String displayName, long archived, long size, int lastBuildNumber,
+              long lastBuildTime) {
+            this.name = name;
+            this.dirName = dirName;
+            this.displayName = displayName;
+            this.archived = archived;
+            this.size = size;
+            this.lastBuildNumber = lastBuildNumber;
+            this.lastBuildTime = lastBuildTime;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the name of the directory the branch project was archived from, which is also the base name of its
+         * archive.  It differs from the project name when the parent encodes names into directory names, for example
+         * for branch names holding {@code /}, {@code %} or non-ASCII characters.
+         *
+         * @return the directory name
+         */
+        public String getDirName() {
+            return dirName == null ? name : dirName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        public long getArchived() {
+            return archived;
+        }
+
+        public Date getArchivedDate() {
+            return new Date(archived);
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public int getLastBuildNumber() {
+            return lastBuildNumber;
+        }
+
+        public long getLastBuildTime() {
+            return lastBuildTime;
+        }
+
+        public Date getLastBuildDate() {
+            return new Date(lastBuildTime);
+        }
+    }
+}
@@ -24,13 +24,41 @@
 package com.github.mjdetullio.jenkins.plugins.multibranch;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
+import hudson.model.AbstractProject;
+import hudson.model.AutoCompletionCandidates;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
 import hudson.model.Items;
 import hudson.model.ListView;
 import hudson.model.TopLevelItem;
+import hudson.model.View;
 import hudson.model.ViewGroup;
+import hudson.model.listeners.ItemListener;
+import hudson.util.CaseInsensitiveComparator;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.annotation.CheckForNull;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.regex.Pattern;
 
 /**
  * Wrapper for {@link ListView} that provides additional support for listing branches in multi-branch projects.
@@ -42,6 +70,38 @@ import org.kohsuke.stapler.DataBoundConstructor;
 public class BranchListView extends ListView {
     private static final String UNUSED = "unused";
 
+    /**
+     * Upper bound for the number of rows returned by a single {@link #doRows} request.
+     */
+    private static final int MAX_ROWS = 500;
+
+    /**
+     * Number of suggestions returned by {@link #doSearchBranches(String)}.
+     */
+    private static final int MAX_SUGGESTIONS = 20;
+
+    /**
+     * Number of rows loaded at a time in paged mode, or 0 to render all branches at once like {@link ListView}.
+     */
+    private int pageSize;
+
+    /**
+     * Sorted names of the branches in this view, or null until first requested.  Kept up to date by
+     * {@link MembershipListener} so that {@link #getItems()} does not need to match every branch against the filters.
+     */
+    private transient volatile Membership membership;
+
+    /**
+     * Branch names in the order last requested from {@link #doRows}, or null until first requested.  Only reused
+     * while neither the membership of this view nor the owner's {@link BranchStatusIndex} changed.
+     */
+    private transient volatile RowOrder rowOrder;
+
+    /**
+     * Incremented whenever the membership of this view may have changed.
+     */
+    private transient volatile int membershipVersion;
+
     /**
      * Constructor used for loading objects of this type.
      *
@@ -75,6 +135,294 @@ public class BranchListView extends ListView {
         return getItem(name);
     }
 
+    /**
+     * Returns the branches in this view from the membership cache, rebuilding the cache with the {@link ListView}
+     * logic only when the include regex or status filter changed since it was built.  Views using job filters or
+     * recursion are not cached, since their membership can depend on anything.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    public List<TopLevelItem> getItems() {
+        if (isRecurse() || !getJobFilters().isEmpty()) {
+            return super.getItems();
+        }
+
+        String includeRegex = getIncludeRegex();
+        Boolean statusFilter = getStatusFilter();
+
+        Membership m = membership;
+        if (m == null || !m.isFor(includeRegex, statusFilter)) {
+            m = new Membership(includeRegex, statusFilter);
+            for (TopLevelItem item : super.getItems()) {
+                m.names.add(item.getName());
+            }
+            membership = m;
+        }
+
+        ItemGroup<? extends TopLevelItem> parent = getOwnerItemGroup();
+        List<TopLevelItem> items = new ArrayList<>(m.names.size());
+        for (String name : m.names) {
+            TopLevelItem item = parent.getItem(name);
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Gets the number of rows loaded at a time in paged mode.  Used by Jelly.
+     *
+     * @return the page size, or 0 if paged mode is off
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Gets whether this view renders its branches page by page, loading rows on demand.  Used by Jelly.
+     *
+     * @return true if paged mode is on
+     */
+    public boolean isPaged() {
+        return pageSize > 0;
+    }
+
+    @Override
+    protected void submit(StaplerRequest req) throws ServletException, Descriptor.FormException, IOException {
+        super.submit(req);
+
+        try {
+            pageSize = Math.max(0, Integer.parseInt(Util.fixEmptyAndTrim(req.getParameter("pageSize"))));
+        } catch (NumberFormatException e) {
+            pageSize = 0;
+        }
+    }
+
+    /**
+     * Stapler URL binding used by paged mode to load rows.  Sorting and filtering happen here, and the column data
+     * comes from the owner's {@link BranchStatusIndex} rather than from each branch's builds.  The sorted order is kept
+     * between requests, so loading further pages of the same listing only looks up the rows of that page.
+     *
+     * @param start  index of the first row to return
+     * @param count  number of rows to return
+     * @param sort   column to sort by: name, status, lastBuild or duration
+     * @param desc   whether to sort in descending order
+     * @param filter case-insensitive text that the branch name or display name must contain
+     * @param rsp    the response
+     * @throws IOException if the response cannot be written
+     */
+    @SuppressWarnings(UNUSED)
+    public void doRows(@QueryParameter int start, @QueryParameter int count, @QueryParameter String sort,
+                       @QueryParameter boolean desc, @QueryParameter String filter, StaplerResponse rsp)
+            throws IOException {
+        checkPermission(READ);
+
+        if (!(getOwner() instanceof TemplateDrivenMultiBranchProject)) {
+            rsp.sendError(StaplerResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        TemplateDrivenMultiBranchProject<?, ?> owner = (TemplateDrivenMultiBranchProject<?, ?>) getOwner();
+        BranchStatusIndex index = owner.getStatusIndex();
+
+        int first = Math.max(0, start);
+        int limit = Math.min(Math.max(1, count), MAX_ROWS);
+
+        ItemGroup<? extends TopLevelItem> parent = getOwnerItemGroup();
+        JSONArray page = new JSONArray();
+        int total = 0;
+        for (String name : getRowOrder(owner, sort, desc, Util.fixEmptyAndTrim(filter))) {
+            TopLevelItem item = parent.getItem(name);
+            if (!(item instanceof AbstractProject) || !item.hasPermission(Item.READ)) {
+                continue;
+            }
+
+            if (total >= first && page.size() < limit) {
+                page.add(new Row(item, index.get((AbstractProject<?, ?>) item)).toJSON());
+            }
+            total++;
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("total", total);
+        json.put("start", Math.min(first, total));
+        json.put("rows", page);
+
+        rsp.setContentType("application/json;charset=UTF-8");
+        json.write(rsp.getWriter());
+    }
+
+    /**
+     * Gets the names of the branches of this view in the order requested from {@link #doRows}, sorting them again
+     * only when the ordering, the filter, the membership of this view or the owner's {@link BranchStatusIndex} changed
+     * since the last request.  Views whose membership is not cached are sorted on every request.
+     *
+     * @param owner  the multi-branch project owning this view
+     * @param sort   column to sort by
+     * @param desc   whether to sort in descending order
+     * @param filter text that the branch name or display name must contain, or null
+     * @return the branch names, in order
+     */
+    private List<String> getRowOrder(TemplateDrivenMultiBranchProject<?, ?> owner, @CheckForNull String sort,
+                                     boolean desc, @CheckForNull String filter) {
+        BranchStatusIndex index = owner.getStatusIndex();
+        boolean cacheable = !isRecurse() && getJobFilters().isEmpty();
+
+        // Read the versions first, so that changes made while sorting make the next request sort again
+        int members = membershipVersion;
+        long status = index.getVersion();
+        RowOrder cached = rowOrder;
+        if (cacheable && cached != null && cached.isFor(sort, desc, filter, members, status)) {
+            return cached.names;
+        }
+
+        Set<String> matches = null;
+        if (filter != null) {
+            matches = new HashSet<>(owner.getSearchIndex().search(filter, Integer.MAX_VALUE));
+        }
+
+        List<Row> rows = new ArrayList<>();
+        for (TopLevelItem item : getItems()) {
+            if (item instanceof AbstractProject && (matches == null || matches.contains(item.getName()))) {
+                rows.add(new Row(item, index.get((AbstractProject<?, ?>) item)));
+            }
+        }
+
+        Comparator<Row> comparator = Row.comparator(sort);
+        Collections.sort(rows, desc ? Collections.reverseOrder(comparator) : comparator);
+
+        List<String> names = new ArrayList<>(rows.size());
+        for (Row row : rows) {
+            names.add(row.item.getName());
+        }
+
+        if (cacheable) {
+            rowOrder = new RowOrder(sort, desc, filter, members, status, names);
+        }
+        return names;
+    }
+
+    /**
+     * Drops the membership cache whenever the view configuration is persisted, which covers configuration submits
+     * and jobs being explicitly added to or removed from the view.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    public void save() throws IOException {
+        membership = null;
+        membershipVersion++;
+        super.save();
+    }
+
+    @Override
+    public void onJobRenamed(Item item, String oldName, String newName) {
+        super.onJobRenamed(item, oldName, newName);
+        membershipVersion++;
+
+        Membership m = membership;
+        if (m != null && item instanceof TopLevelItem) {
+            m.names.remove(oldName);
+            update(m, (TopLevelItem) item);
+        }
+    }
+
+    /**
+     * Re-evaluates whether a single branch belongs to this view after it was created or changed.
+     *
+     * @param item the branch
+     */
+    private void onBranchUpdated(TopLevelItem item) {
+        membershipVersion++;
+
+        Membership m = membership;
+        if (m != null) {
+            update(m, item);
+        }
+    }
+
+    /**
+     * Removes a single branch from this view after it was deleted.
+     *
+     * @param item the branch
+     */
+    private void onBranchDeleted(TopLevelItem item) {
+        membershipVersion++;
+
+        Membership m = membership;
+        if (m != null) {
+            m.names.remove(item.getName());
+        }
+    }
+
+    /**
+     * Mirrors the checks of {@link ListView#getItems()} for one item.
+     *
+     * @param m    the membership to update
+     * @param item the item to check
+     */
+    private void update(Membership m, TopLevelItem item) {
+        boolean included = jobNamesContains(item)
+                || m.includePattern != null && m.includePattern.matcher(item.getName()).matches();
+        boolean statusMatches = m.statusFilter == null || !(item instanceof AbstractProject)
+                || ((AbstractProject) item).isDisabled() ^ m.statusFilter;
+
+        if (included && statusMatches) {
+            m.names.add(item.getName());
+        } else {
+            m.names.remove(item.getName());
+        }
+    }
+
+    /**
+     * Stapler URL binding for branch typeahead.  Looks up the owner's {@link BranchSearchIndex} and returns the
+     * branches of this view whose name or display name contains the value.
+     *
+     * @param value the text typed so far
+     * @return branch name suggestions, in the format used by Jenkins auto-completion
+     */
+    @SuppressWarnings(UNUSED)
+    public AutoCompletionCandidates doSearchBranches(@QueryParameter String value) {
+        checkPermission(READ);
+
+        AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+        if (!(getOwner() instanceof TemplateDrivenMultiBranchProject)) {
+            return candidates;
+        }
+
+        BranchSearchIndex index = ((TemplateDrivenMultiBranchProject<?, ?>) getOwner()).getSearchIndex();
+        Set<String> members = null;
+
+        // Over-fetch a little, since some matches may be outside of this view or not readable
+        for (String name : index.search(value, MAX_SUGGESTIONS * 2)) {
+            if (candidates.getValues().size() >= MAX_SUGGESTIONS) {
+                break;
+            }
+
+            Membership m = membership;
+            boolean member;
+            if (m != null) {
+                member = m.names.contains(name);
+            } else {
+                if (members == null) {
+                    members = new HashSet<>();
+                    for (TopLevelItem item : getItems()) {
+                        members.add(item.getName());
+                    }
+                }
+                member = members.contains(name);
+            }
+
+            TopLevelItem item = getOwnerItemGroup().getItem(name);
+            if (member && item != null && item.hasPermission(Item.READ)) {
+                candidates.add(name);
+            }
+        }
+        return candidates;
+    }
+
     /**
      * Used by Jelly to get the correct configure URL when linking from views with no jobs.
      *
@@ -112,6 +460,189 @@ public class BranchListView extends ListView {
         }
     }
 
+    /**
+     * One row of the paged branch list.
+     */
+    private static final class Row {
+        private final TopLevelItem item;
+
+        private final BranchStatusIndex.Entry entry;
+
+        Row(TopLevelItem item, BranchStatusIndex.Entry entry) {
+            this.item = item;
+            this.entry = entry;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject();
+            json.put("name", item.getName());
+            json.put("displayName", entry.getDisplayName());
+            json.put("url", item.getUrl());
+            json.put("icon", entry.getColor().getImageOf("16x16"));
+            json.put("status", entry.getColor().getDescription());
+            json.put("lastBuild", entry.getLastBuildNumber());
+            json.put("lastBuildTime", entry.getLastBuildTime() == 0L ? ""
+                    : Util.getPastTimeString(System.currentTimeMillis() - entry.getLastBuildTime()));
+            json.put("duration", entry.getLastBuildDuration() == 0L ? ""
+                    : Util.getTimeSpanString(entry.getLastBuildDuration()));
+            return json;
+        }
+
+        /**
+         * Orders rows by branch name with the same case-insensitive ordering used for view membership.
+         */
+        static int compareNames(Row o1, Row o2) {
+            return CaseInsensitiveComparator.INSTANCE.compare(o1.item.getName(), o2.item.getName());
+        }
+
+        static Comparator<Row> comparator(@CheckForNull String sort) {
+            if ("status".equals(sort)) {
+                return new Comparator<Row>() {
+                    @Override
+                    public int compare(Row o1, Row o2) {
+                        int c = o1.entry.getColor().noAnime().compareTo(o2.entry.getColor().noAnime());
+                        return c != 0 ? c : compareNames(o1, o2);
+                    }
+                };
+            } else if ("lastBuild".equals(sort)) {
+                return new Comparator<Row>() {
+                    @Override
+                    public int compare(Row o1, Row o2) {
+                        int c = Long.compare(o1.entry.getLastBuildTime(), o2.entry.getLastBuildTime());
+                        return c != 0 ? c : compareNames(o1, o2);
+                    }
+                };
+            } else if ("duration".equals(sort)) {
+                return new Comparator<Row>() {
+                    @Override
+                    public int compare(Row o1, Row o2) {
+                        int c = Long.compare(o1.entry.getLastBuildDuration(), o2.entry.getLastBuildDuration());
+                        return c != 0 ? c : compareNames(o1, o2);
+                    }
+                };
+            }
+
+            return new Comparator<Row>() {
+                @Override
+                public int compare(Row o1, Row o2) {
+                    return compareNames(o1, o2);
+                }
+            };
+        }
+    }
+
+    /**
+     * Branch names of a view along with the filters they were computed for.
+     */
+    private static final class Membership {
+        private final String includeRegex;
+
+        private final Pattern includePattern;
+
+        private final Boolean statusFilter;
+
+        private final NavigableSet<String> names = new ConcurrentSkipListSet<>(CaseInsensitiveComparator.INSTANCE);
+
+        Membership(@CheckForNull String includeRegex, @CheckForNull Boolean statusFilter) {
+            this.includeRegex = includeRegex;
+            this.includePattern = includeRegex == null ? null : Pattern.compile(includeRegex);
+            this.statusFilter = statusFilter;
+        }
+
+        boolean isFor(@CheckForNull String includeRegex, @CheckForNull Boolean statusFilter) {
+            return (this.includeRegex == null ? includeRegex == null : this.includeRegex.equals(includeRegex))
+                    && (this.statusFilter == null ? statusFilter == null : this.statusFilter.equals(statusFilter));
+        }
+    }
+
+    /**
+     * Sorted branch names of a view along with the request and the versions they were computed for.
+     */
+    private static final class RowOrder {
+        private final String sort;
+
+        private final boolean desc;
+
+        private final String filter;
+
+        private final int membershipVersion;
+
+        private final long statusVersion;
+
+        private final List<String> names;
+
+        RowOrder(@CheckForNull String sort, boolean desc, @CheckForNull String filter, int membershipVersion,
+                 long statusVersion, List<String> names) {
+            this.sort = sort;
+            this.desc = desc;
+            this.filter = filter;
+            this.membershipVersion = membershipVersion;
+            this.statusVersion = statusVersion;
+            this.names = Collections.unmodifiableList(names);
+        }
+
+        boolean isFor(@CheckForNull String sort, boolean desc, @CheckForNull String filter, int membershipVersion,
+                      long statusVersion) {
+            return Objects.equals(this.sort, sort) && this.desc == desc && Objects.equals(this.filter, filter)
+                    && this.membershipVersion == membershipVersion && this.statusVersion == statusVersion;
+        }
+    }
+
+    /**
+     * Keeps the membership of {@link BranchListView}s up to date as branches are created, deleted or changed.
+     * Renames are handled by {@link #onJobRenamed(Item, String, String)}.
+     */
+    @SuppressWarnings(UNUSED)
+    @Extension
+    public static final class MembershipListener extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            onUpdated(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = getParentOf(item);
+            if (parent != null) {
+                for (View view : parent.getViews()) {
+                    if (view instanceof BranchListView) {
+                        ((BranchListView) view).onBranchUpdated((TopLevelItem) item);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = getParentOf(item);
+            if (parent != null) {
+                for (View view : parent.getViews()) {
+                    if (view instanceof BranchListView) {
+                        ((BranchListView) view).onBranchDeleted((TopLevelItem) item);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Gets the multi-branch project of a branch project, ignoring the template project.
+         *
+         * @param item the item
+         * @return the parent, or null if the item is not a branch project
+         */
+        @CheckForNull
+        private static TemplateDrivenMultiBranchProject<?, ?> getParentOf(Item item) {
+            if (item instanceof TopLevelItem && item.getParent() instanceof TemplateDrivenMultiBranchProject) {
+                TemplateDrivenMultiBranchProject<?, ?> parent =
+                        (TemplateDrivenMultiBranchProject<?, ?>) item.getParent();
+                if (item != parent.getTemplate()) {
+                    return parent;
+                }
+            }
+            return null;
+        }
+    }
+
     /**
      * Gives this class an alias for configuration XML.
      */
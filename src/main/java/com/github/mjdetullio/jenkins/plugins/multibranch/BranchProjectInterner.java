@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import hudson.model.AbstractProject;
+import hudson.model.BuildableItemWithBuildWrappers;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Project;
+import hudson.model.Run;
+import hudson.util.Secret;
+
+import javax.annotation.Nonnull;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Canonicalizes the strings held by the configuration of branch projects, so that the many identical strings
+ * (class names, script bodies, SCM URLs, publisher settings, ...) that sibling branch projects read from the same
+ * template share one instance on the heap.
+ * <br>
+ * Only strings are shared.  Builders, publishers and SCMs are mutable and may keep per-project state, so sharing the
+ * objects themselves would leak changes from one branch project into its siblings.
+ * <br>
+ * The SCM, triggers, properties, builders, build wrappers and publishers of a project are walked reflectively.  Only
+ * configuration objects, that is {@link Describable}s, and the arrays, collections and maps they hold are entered, so
+ * the walk cannot wander into caches or other runtime state, and it never enters items, runs, nodes, labels,
+ * descriptors or {@link Secret}s.  Final fields are left alone.
+ *
+ * @author Matthew DeTullio
+ */
+public final class BranchProjectInterner {
+
+    private static final String CLASSNAME = BranchProjectInterner.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    /**
+     * Approximate retained size of a string, excluding its characters: object header, fields and array header.
+     */
+    private static final int STRING_OVERHEAD = 40;
+
+    private static final int MAX_DEPTH = 8;
+
+    private static final Interner<String> STRINGS = Interners.newWeakInterner();
+
+    private static final AtomicLong PROJECTS = new AtomicLong();
+    private static final AtomicLong STRINGS_SEEN = new AtomicLong();
+    private static final AtomicLong STRINGS_SHARED = new AtomicLong();
+    private static final AtomicLong BYTES_DEDUPLICATED = new AtomicLong();
+
+    private static final Map<Class<?>, Field[]> FIELDS = Collections.synchronizedMap(
+            new IdentityHashMap<Class<?>, Field[]>());
+
+    private BranchProjectInterner() {
+    }
+
+    /**
+     * Canonicalizes the strings held by the configuration of a branch project.
+     *
+     * @param project the branch project
+     */
+    public static void intern(@Nonnull AbstractProject<?, ?> project) {
+        List<Object> roots = new ArrayList<>();
+        roots.add(project.getScm());
+        roots.add(project.getTriggers());
+        roots.add(project.getAllProperties());
+        roots.add(project.getPublishersList());
+        if (project instanceof Project) {
+            roots.add(((Project<?, ?>) project).getBuildersList());
+        }
+        if (project instanceof BuildableItemWithBuildWrappers) {
+            roots.add(((BuildableItemWithBuildWrappers) project).getBuildWrappersList());
+        }
+
+        Walker walker = new Walker();
+        for (Object root : roots) {
+            walker.walk(root, 0);
+        }
+
+        PROJECTS.incrementAndGet();
+        STRINGS_SEEN.addAndGet(walker.seen);
+        STRINGS_SHARED.addAndGet(walker.shared);
+        BYTES_DEDUPLICATED.addAndGet(walker.saved);
+    }
+
+    /**
+     * Gets the number of branch projects interned since startup.
+     *
+     * @return number of projects
+     */
+    public static long getProjects() {
+        return PROJECTS.get();
+    }
+
+    /**
+     * Gets the number of strings examined since startup.
+     *
+     * @return number of strings
+     */
+    public static long getStringsSeen() {
+        return STRINGS_SEEN.get();
+    }
+
+    /**
+     * Gets the number of strings replaced by an existing equal instance since startup.
+     *
+     * @return number of strings
+     */
+    public static long getStringsShared() {
+        return STRINGS_SHARED.get();
+    }
+
+    /**
+     * Gets an estimate of the size of all strings replaced by an existing equal instance since startup.  This is a
+     * cumulative count, not the heap currently saved: a branch project reloaded from its template, for example by a
+     * template propagation, reads fresh copies of its strings, which are counted again when interned.
+     *
+     * @return bytes
+     */
+    public static long getBytesDeduplicated() {
+        return BYTES_DEDUPLICATED.get();
+    }
+
+    /**
+     * Skips types whose instances are not part of a project's own configuration.
+     */
+    private static boolean isBoundary(Object o) {
+        return o instanceof Item || o instanceof ItemGroup || o instanceof Run || o instanceof Node
+                || o instanceof Label || o instanceof Descriptor || o instanceof Secret || o instanceof Class
+                || o instanceof Enum || o instanceof Number || o instanceof Boolean || o instanceof Character;
+    }
+
+    private static Field[] fieldsOf(Class<?> type) {
+        Field[] fields = FIELDS.get(type);
+        if (fields == null) {
+            List<Field> list = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    int mod = f.getModifiers();
+                    if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || Modifier.isFinal(mod)
+                            || f.getType().isPrimitive()) {
+                        continue;
+                    }
+                    try {
+                        f.setAccessible(true);
+                        list.add(f);
+                    } catch (SecurityException e) {
+                        LOGGER.log(Level.FINEST, "Cannot access " + f, e);
+                    }
+                }
+            }
+            fields = list.toArray(new Field[list.size()]);
+            FIELDS.put(type, fields);
+        }
+        return fields;
+    }
+
+    /**
+     * Walks one project's configuration, keeping per-walk counts.
+     */
+    private static final class Walker {
+        private final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+
+        private long seen;
+        private long shared;
+        private long saved;
+
+        /**
+         * Returns the canonical instance of a string, counting it.
+         */
+        private String canonical(String s) {
+            seen++;
+            String c = STRINGS.intern(s);
+            if (c != s) {
+                shared++;
+                saved += STRING_OVERHEAD + 2L * s.length();
+            }
+            return c;
+        }
+
+        @SuppressWarnings("unchecked")
+        void walk(Object o, int depth) {
+            if (o == null || o instanceof String || depth > MAX_DEPTH || isBoundary(o) || !visited.add(o)) {
+                return;
+            }
+
+            if (o instanceof Object[]) {
+                Object[] array = (Object[]) o;
+                for (int i = 0; i < array.length; i++) {
+                    if (array[i] instanceof String) {
+                        array[i] = canonical((String) array[i]);
+                    } else {
+                        walk(array[i], depth + 1);
+                    }
+                }
+            } else if (o instanceof List) {
+                walkList((List<Object>) o, depth);
+            } else if (o instanceof Collection) {
+                for (Object e : (Collection<?>) o) {
+                    walk(e, depth + 1);
+                }
+            } else if (o instanceof Map) {
+                for (Object e : ((Map<?, ?>) o).values()) {
+                    walk(e, depth + 1);
+                }
+            } else if (o instanceof Iterable) {
+                // Such as the DescribableList of builders and publishers
+                for (Object e : (Iterable<?>) o) {
+                    walk(e, depth + 1);
+                }
+            } else if (o instanceof Describable) {
+                walkFields(o, depth);
+            }
+        }
+
+        private void walkList(List<Object> list, int depth) {
+            try {
+                for (ListIterator<Object> it = list.listIterator(); it.hasNext(); ) {
+                    Object e = it.next();
+                    if (e instanceof String) {
+                        String c = canonical((String) e);
+                        if (c != e) {
+                            it.set(c);
+                        }
+                    } else {
+                        walk(e, depth + 1);
+                    }
+                }
+            } catch (UnsupportedOperationException e) {
+                // Unmodifiable or copy-on-write view; the elements are still walked
+                for (Object element : list) {
+                    walk(element, depth + 1);
+                }
+            }
+        }
+
+        private void walkFields(Object o, int depth) {
+            for (Field f : fieldsOf(o.getClass())) {
+                try {
+                    Object value = f.get(o);
+                    if (value instanceof String) {
+                        String c = canonical((String) value);
+                        if (c != value) {
+                            f.set(o, c);
+                        }
+                    } else {
+                        walk(value, depth + 1);
+                    }
+                } catch (IllegalAccessException | RuntimeException e) {
+                    LOGGER.log(Level.FINEST, "Cannot intern " + f, e);
+                }
+            }
+        }
+    }
+}
@@ -23,26 +23,63 @@
  */
 package com.github.mjdetullio.jenkins.plugins.multibranch;
 
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+import com.thoughtworks.xstream.mapper.Mapper;
 import hudson.Extension;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Items;
 import hudson.model.JobProperty;
 import hudson.model.JobPropertyDescriptor;
 import hudson.model.TopLevelItem;
+import hudson.scm.NullSCM;
 import jenkins.branch.Branch;
+import jenkins.branch.BranchProperty;
+import jenkins.branch.BranchSource;
+import jenkins.branch.MultiBranchProject;
+import jenkins.scm.api.SCMHead;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * A basic {@link JobProperty} that holds a {@link Branch} so that {@link TemplateDrivenMultiBranchProject}s can
  * manage the project holding this property.
+ * <br>
+ * Only the source id and head of the branch are persisted (see {@link ConverterImpl}).  The SCM is already saved as
+ * the project's own SCM and the branch properties belong to the shared {@link BranchSource} configuration of the
+ * parent, so the full {@link Branch} is rebuilt from those the first time it is requested after loading.  The
+ * {@link Branch#getActions() actions} of the branch, such as its display name or links from the source, are not
+ * persisted; a rebuilt branch has none until the next branch indexing sets the branch again.
  *
  * @author Matthew DeTullio
  */
 public class BranchProjectProperty<P extends AbstractProject<P, B> & TopLevelItem, B extends AbstractBuild<P, B>>
         extends JobProperty<P> {
 
-    private Branch branch;
+    private volatile Branch branch;
+
+    private String sourceId;
+
+    private SCMHead head;
+
+    private boolean dead;
+
+    private boolean kept;
+
+    private String templateRevision;
+
+    private final transient PushCadence cadence = new PushCadence();
 
     /**
      * Creates a new property with the Branch it will hold.
@@ -50,17 +87,43 @@ public class BranchProjectProperty<P extends AbstractProject<P, B> & TopLevelIte
      * @param branch the branch
      */
     public BranchProjectProperty(@Nonnull Branch branch) {
-        this.branch = branch;
+        setBranch(branch);
+    }
+
+    /**
+     * Creates a property from its persisted form.  The branch is rebuilt on first use.
+     *
+     * @param sourceId the id of the branch source
+     * @param head     the branch head
+     * @param dead             whether the branch no longer exists in its source
+     * @param kept             whether the project was restored by hand from the {@link BranchArchive}
+     * @param templateRevision the revision of the template last applied to the project
+     */
+    private BranchProjectProperty(String sourceId, SCMHead head, boolean dead, boolean kept,
+                                  String templateRevision) {
+        this.sourceId = sourceId;
+        this.head = head;
+        this.dead = dead;
+        this.kept = kept;
+        this.templateRevision = templateRevision;
     }
 
     /**
-     * Gets the Branch held by the property.
+     * Gets the Branch held by the property.  A branch rebuilt before the property has an owner has no SCM and no
+     * properties, so it is not kept, and the branch is rebuilt again once the owner is set.
      *
      * @return the branch
      */
     @Nonnull
     public Branch getBranch() {
-        return branch;
+        Branch b = branch;
+        if (b == null) {
+            b = rebuildBranch();
+            if (owner != null) {
+                branch = b;
+            }
+        }
+        return b;
     }
 
     /**
@@ -69,9 +132,126 @@ public class BranchProjectProperty<P extends AbstractProject<P, B> & TopLevelIte
      * @param branch the branch
      */
     public void setBranch(@Nonnull Branch branch) {
+        this.sourceId = branch.getSourceId();
+        this.head = branch.getHead();
+        this.dead = branch instanceof Branch.Dead;
+        if (!dead) {
+            this.kept = false;
+        }
         this.branch = branch;
     }
 
+    /**
+     * Gets whether the project was restored by hand from the {@link BranchArchive} while its branch was dead, and must
+     * not be archived again until the branch comes back.
+     *
+     * @return true if the project is kept
+     */
+    boolean isKept() {
+        return kept;
+    }
+
+    /**
+     * Sets whether the project is kept out of the {@link BranchArchive} while its branch is dead.  Cleared when the
+     * branch comes back.
+     *
+     * @param kept true to keep the project
+     */
+    void setKept(boolean kept) {
+        this.kept = kept;
+    }
+
+    /**
+     * Gets the revision of the template configuration last applied to the project.
+     *
+     * @return the MD5 digest of the template configuration, or null if unknown
+     */
+    @CheckForNull
+    String getTemplateRevision() {
+        return templateRevision;
+    }
+
+    /**
+     * Sets the revision of the template configuration applied to the project.
+     *
+     * @param templateRevision the MD5 digest of the template configuration
+     */
+    void setTemplateRevision(@CheckForNull String templateRevision) {
+        this.templateRevision = templateRevision;
+    }
+
+    /**
+     * Forgets the applied template revision when the configuration of the project is replaced through its
+     * {@code config.xml} by anything but its factory, so the next decorate reloads the project from the template.
+     * Runs while the new configuration is loaded, before anything else saves the project.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setOwner(P owner) {
+        super.setOwner(owner);
+        if (Items.currentlyUpdatingByXml() && !TemplateDrivenBranchProjectFactory.isUpdating()) {
+            templateRevision = null;
+        }
+    }
+
+    /**
+     * Keeps the property when the configuration page of the project is submitted, which has no section for it, but
+     * forgets the applied template revision, so the next decorate reloads the project from the template.  Runs before
+     * the submitted configuration is saved.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    public JobProperty<?> reconfigure(StaplerRequest req, JSONObject form) {
+        templateRevision = null;
+        return this;
+    }
+
+    /**
+     * Gets the recent event intervals of the branch, used to adapt its quiet period.  Not persisted.
+     *
+     * @return the cadence
+     */
+    @Nonnull
+    PushCadence getCadence() {
+        return cadence;
+    }
+
+    /**
+     * Rebuilds the branch from the persisted source id and head, the SCM of the owning project and the properties
+     * the matching source of the parent currently assigns to the head.
+     *
+     * @return the branch
+     */
+    @Nonnull
+    private Branch rebuildBranch() {
+        List<? extends BranchProperty> properties = Collections.emptyList();
+        BranchSource source = findSource();
+        if (source != null && source.getStrategy() != null) {
+            properties = source.getStrategy().getPropertiesFor(head);
+        }
+
+        if (dead) {
+            return new Branch.Dead(head, properties);
+        }
+        return new Branch(sourceId, head, owner == null ? new NullSCM() : owner.getScm(), properties);
+    }
+
+    @CheckForNull
+    private BranchSource findSource() {
+        if (owner == null || !(owner.getParent() instanceof MultiBranchProject)) {
+            return null;
+        }
+
+        for (BranchSource source : ((MultiBranchProject<?, ?>) owner.getParent()).getSources()) {
+            if (source.getSource().getId().equals(sourceId)) {
+                return source;
+            }
+        }
+        return null;
+    }
+
     /**
      * {@link BranchProjectProperty}'s descriptor.
      */
@@ -84,4 +264,121 @@ public class BranchProjectProperty<P extends AbstractProject<P, B> & TopLevelIte
             return "Branch";
         }
     }
+
+    /**
+     * Writes the property as its source id, head, liveness, archive exemption and applied template revision only.  Still reads the
+     * former format holding the full {@link Branch}, which is converted on the next save.  The actions of the branch
+     * are dropped when writing, see {@link BranchProjectProperty}.
+     */
+    public static final class ConverterImpl implements Converter {
+        private static final String SOURCE_ID = "sourceId";
+        private static final String HEAD = "head";
+        private static final String DEAD = "dead";
+        private static final String KEPT = "kept";
+        private static final String TEMPLATE_REVISION = "templateRevision";
+        private static final String LEGACY_BRANCH = "branch";
+        private static final String CLASS = "class";
+
+        private final Mapper mapper;
+
+        /**
+         * Creates the converter.
+         *
+         * @param mapper the mapper used to write and resolve the class of the head
+         */
+        public ConverterImpl(Mapper mapper) {
+            this.mapper = mapper;
+        }
+
+        @Override
+        public boolean canConvert(Class type) {
+            return type == BranchProjectProperty.class;
+        }
+
+        @Override
+        public void marshal(Object source, HierarchicalStreamWriter writer, MarshallingContext context) {
+            BranchProjectProperty<?, ?> property = (BranchProjectProperty<?, ?>) source;
+
+            writer.startNode(SOURCE_ID);
+            writer.setValue(property.sourceId);
+            writer.endNode();
+
+            writer.startNode(HEAD);
+            if (property.head.getClass() != SCMHead.class) {
+                writer.addAttribute(CLASS, mapper.serializedClass(property.head.getClass()));
+            }
+            context.convertAnother(property.head);
+            writer.endNode();
+
+            if (property.dead) {
+                writer.startNode(DEAD);
+                writer.setValue(Boolean.TRUE.toString());
+                writer.endNode();
+            }
+
+            if (property.kept) {
+                writer.startNode(KEPT);
+                writer.setValue(Boolean.TRUE.toString());
+                writer.endNode();
+            }
+
+            if (property.templateRevision != null) {
+                writer.startNode(TEMPLATE_REVISION);
+                writer.setValue(property.templateRevision);
+                writer.endNode();
+            }
+        }
+
+        @Override
+        public Object unmarshal(HierarchicalStreamReader reader, UnmarshallingContext context) {
+            String sourceId = null;
+            SCMHead head = null;
+            boolean dead = false;
+            boolean kept = false;
+            String templateRevision = null;
+            Branch legacy = null;
+
+            while (reader.hasMoreChildren()) {
+                reader.moveDown();
+                String name = reader.getNodeName();
+                if (SOURCE_ID.equals(name)) {
+                    sourceId = reader.getValue();
+                } else if (HEAD.equals(name)) {
+                    head = (SCMHead) context.convertAnother(null, typeOf(reader, SCMHead.class));
+                } else if (DEAD.equals(name)) {
+                    dead = Boolean.parseBoolean(reader.getValue());
+                } else if (KEPT.equals(name)) {
+                    kept = Boolean.parseBoolean(reader.getValue());
+                } else if (TEMPLATE_REVISION.equals(name)) {
+                    templateRevision = reader.getValue();
+                } else if (LEGACY_BRANCH.equals(name)) {
+                    legacy = (Branch) context.convertAnother(null, typeOf(reader, Branch.class));
+                }
+                reader.moveUp();
+            }
+
+            if (legacy != null) {
+                return new BranchProjectProperty(legacy);
+            }
+            if (head == null) {
+                head = new SCMHead("unknown");
+            }
+            return new BranchProjectProperty(sourceId == null ? "unknown" : sourceId, head, dead, kept,
+                    templateRevision);
+        }
+
+        private Class typeOf(HierarchicalStreamReader reader, Class defaultType) {
+            String type = reader.getAttribute(CLASS);
+            return type == null ? defaultType : mapper.realClass(type);
+        }
+    }
+
+    /**
+     * Registers the compact converter for configuration XML.
+     */
+    @Initializer(before = InitMilestone.PLUGINS_STARTED)
+    @SuppressWarnings("unused")
+    public static void registerXStream() {
+        Items.XSTREAM.registerConverter(new ConverterImpl(Items.XSTREAM.getMapper()));
+    }
 }
@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.listeners.ItemListener;
+import hudson.model.queue.QueueSorter;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Orders buildable branch projects of {@link TemplateDrivenMultiBranchProject}s so that important branches do not
+ * wait behind a burst of feature branch builds.  Items that are not branch projects keep their positions, and the
+ * branch project items are reordered among the remaining positions by:
+ * <ol>
+ * <li>the first of the parent's {@link TemplateDrivenMultiBranchProject#getPriorityBranches() priority branch
+ * patterns} matching the branch name (branches matching none come after), unless the item has waited longer than an
+ * hour, in which case it is treated as top priority;</li>
+ * <li>whether the branch was built within the last week, according to the in-memory {@link BranchStatusIndex}
+ * (branches not indexed yet count as not built);</li>
+ * <li>how long the item has waited, longest first.</li>
+ * </ol>
+ * Sorting runs under the queue lock, so it never loads builds.  Sort keys are computed once per item, so sorting costs
+ * O(n log n) comparisons of plain numbers.
+ * <br>
+ * Jenkins uses a single {@link QueueSorter}, so this is not registered as an extension, which could displace the sorter
+ * of another plugin such as Priority Sorter.  Once all items are loaded, it wraps whatever sorter is installed: the
+ * wrapped sorter orders the whole queue first, then only the positions it gave to branch project items are reordered.
+ * Other items, including every job outside multi-branch projects, keep the order the wrapped sorter chose.  A sorter
+ * installed later by another plugin is wrapped in turn within a minute.
+ *
+ * @author Matthew DeTullio
+ */
+public class BranchQueueSorter extends QueueSorter {
+
+    private static final String CLASSNAME = BranchQueueSorter.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    private static final long STARVATION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private static final long ACTIVE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    private final QueueSorter delegate;
+
+    /**
+     * Creates a sorter reordering branch project items after another sorter.
+     *
+     * @param delegate the sorter installed before, or null if none
+     */
+    BranchQueueSorter(@CheckForNull QueueSorter delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Wraps the installed sorter unless it is already wrapped.
+     */
+    static synchronized void install() {
+        Queue queue = Jenkins.getActiveInstance().getQueue();
+        QueueSorter current = queue.getSorter();
+        if (current instanceof BranchQueueSorter) {
+            return;
+        }
+        LOGGER.log(Level.FINE, "Ordering branch projects within the order of {0}", current);
+        queue.setSorter(new BranchQueueSorter(current));
+    }
+
+    /**
+     * Installs the sorter once all items are loaded, which is after the reactor finished and every other plugin had
+     * the chance to install its own sorter.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class Installer extends ItemListener {
+        @Override
+        public void onLoaded() {
+            install();
+        }
+    }
+
+    /**
+     * Wraps the sorter again after another plugin replaced it, as Priority Sorter does when its configuration is saved.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class Reinstaller extends PeriodicWork {
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            install();
+        }
+    }
+
+    @Override
+    public void sortBlockedItems(List<? extends Queue.BlockedItem> blockedItems) {
+        if (delegate != null) {
+            delegate.sortBlockedItems(blockedItems);
+        } else {
+            super.sortBlockedItems(blockedItems);
+        }
+    }
+
+    @Override
+    public void sortBuildableItems(List<Queue.BuildableItem> buildables) {
+        if (delegate != null) {
+            delegate.sortBuildableItems(buildables);
+        }
+
+        long now = System.currentTimeMillis();
+
+        List<Integer> slots = new ArrayList<>();
+        List<Keyed> keyed = new ArrayList<>();
+        for (int i = 0; i < buildables.size(); i++) {
+            Queue.BuildableItem item = buildables.get(i);
+            Job<?, ?> project = branchProjectOf(item.task);
+            if (project != null) {
+                slots.add(i);
+                keyed.add(new Keyed(item, project, now));
+            }
+        }
+        Collections.sort(keyed);
+
+        for (int i = 0; i < keyed.size(); i++) {
+            buildables.set(slots.get(i), keyed.get(i).item);
+        }
+    }
+
+    /**
+     * Finds the branch project a queued task belongs to, including matrix configurations of branch projects.
+     *
+     * @param task the task
+     * @return the branch project, or null if the task is not part of one
+     */
+    private static Job<?, ?> branchProjectOf(Queue.Task task) {
+        Queue.Task owner = task.getOwnerTask();
+        if (owner instanceof Job && ((Item) owner).getParent() instanceof TemplateDrivenMultiBranchProject) {
+            return (Job<?, ?>) owner;
+        }
+        return null;
+    }
+
+    /**
+     * A buildable item with its precomputed sort key.
+     */
+    private static final class Keyed implements Comparable<Keyed> {
+        private final Queue.BuildableItem item;
+        private final int tier;
+        private final int idle;
+        private final long since;
+
+        Keyed(Queue.BuildableItem item, Job<?, ?> project, long now) {
+            this.item = item;
+            this.since = item.getInQueueSince();
+
+            TemplateDrivenMultiBranchProject<?, ?> parent =
+                    (TemplateDrivenMultiBranchProject<?, ?>) project.getParent();
+            tier = now - since > STARVATION_MILLIS ? -1 : parent.getBranchPriority(project.getName());
+
+            BranchStatusIndex.Entry status = parent.getStatusIndex().peek(project.getName());
+            idle = status != null && now - status.getLastBuildTime() <= ACTIVE_MILLIS ? 0 : 1;
+        }
+
+        @Override
+        public int compareTo(Keyed o) {
+            if (tier != o.tier) {
+                return tier < o.tier ? -1 : 1;
+            }
+            if (idle != o.idle) {
+                return idle < o.idle ? -1 : 1;
+            }
+            return since < o.since ? -1 : since == o.since ? 0 : 1;
+        }
+    }
+}
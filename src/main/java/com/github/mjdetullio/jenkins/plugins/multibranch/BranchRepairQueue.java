@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.TopLevelItem;
+import hudson.security.ACL;
+import jenkins.branch.Branch;
+import jenkins.util.Timer;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persists the {@link BranchProjectProperty} of branch projects found without one, outside of the read paths that
+ * find them.
+ * <br>
+ * {@link TemplateDrivenBranchProjectFactory#getBranch(AbstractProject)} only queues a repair and keeps returning the
+ * queued branch, so repeated reads of the same project neither write to disk nor queue more than one save.  The queue
+ * is drained shortly afterwards on a {@link Timer} thread, a batch at a time.
+ *
+ * @author Matthew DeTullio
+ */
+final class BranchRepairQueue {
+
+    private static final String CLASSNAME = BranchRepairQueue.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    private static final long DELAY_MILLIS = 5000L;
+
+    private static final int BATCH_SIZE = 100;
+
+    private static final ConcurrentMap<AbstractProject<?, ?>, Repair<?, ?>> PENDING = new ConcurrentHashMap<>();
+
+    private static final AtomicBoolean SCHEDULED = new AtomicBoolean();
+
+    private BranchRepairQueue() {
+    }
+
+    /**
+     * Queues the branch to be persisted for a project, unless a repair of that project is already queued.
+     *
+     * @param factory the factory managing the project
+     * @param project the project missing its property
+     * @param branch  the branch to persist
+     * @param <P>     the project type
+     * @param <B>     the build type
+     * @return the queued branch, which is the earlier one if a repair was already queued
+     */
+    @Nonnull
+    static <P extends AbstractProject<P, B> & TopLevelItem, B extends AbstractBuild<P, B>> Branch request(
+            @Nonnull TemplateDrivenBranchProjectFactory<P, B> factory, @Nonnull P project, @Nonnull Branch branch) {
+        Repair<?, ?> existing = PENDING.putIfAbsent(project, new Repair<>(factory, project, branch));
+        if (existing != null) {
+            return existing.branch;
+        }
+
+        schedule();
+        return branch;
+    }
+
+    /**
+     * Gets the branch queued for a project.
+     *
+     * @param project the project
+     * @return the queued branch, or null if no repair is queued
+     */
+    @CheckForNull
+    static Branch pending(@Nonnull AbstractProject<?, ?> project) {
+        Repair<?, ?> repair = PENDING.get(project);
+        return repair == null ? null : repair.branch;
+    }
+
+    private static void schedule() {
+        if (SCHEDULED.compareAndSet(false, true)) {
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Persists up to one batch of queued repairs, then reschedules itself if any remain.
+     */
+    private static void drain() {
+        SCHEDULED.set(false);
+
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            int count = 0;
+            Iterator<Map.Entry<AbstractProject<?, ?>, Repair<?, ?>>> it = PENDING.entrySet().iterator();
+            while (it.hasNext() && count++ < BATCH_SIZE) {
+                Repair<?, ?> repair = it.next().getValue();
+                try {
+                    repair.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Unable to repair BranchProjectProperty", e);
+                }
+                it.remove();
+            }
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+
+        if (!PENDING.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * A queued save of a branch to a project.
+     */
+    private static final class Repair<P extends AbstractProject<P, B> & TopLevelItem, B extends AbstractBuild<P, B>> {
+        private final TemplateDrivenBranchProjectFactory<P, B> factory;
+        private final P project;
+        private final Branch branch;
+
+        Repair(TemplateDrivenBranchProjectFactory<P, B> factory, P project, Branch branch) {
+            this.factory = factory;
+            this.project = project;
+            this.branch = branch;
+        }
+
+        void run() {
+            // The project may have been deleted, or indexing may have set a real branch, in the meantime
+            if (project.getParent().getItem(project.getName()) == project
+                    && project.getProperty(BranchProjectProperty.class) == null) {
+                factory.setBranch(project, branch);
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.model.Item;
+import hudson.model.listeners.ItemListener;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Search index over the names and display names of the branch projects of a {@link TemplateDrivenMultiBranchProject}.
+ * <br>
+ * Terms are kept in a sorted map for prefix lookups and in a trigram index for substring lookups, so a query only
+ * verifies the branches that share the rarest of its trigrams instead of scanning every branch.  Queries shorter than a
+ * trigram fall back to a scan of the distinct terms.  Matching is case-insensitive.
+ *
+ * @author Matthew DeTullio
+ */
+public final class BranchSearchIndex {
+
+    private static final int GRAM = 3;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Branch name to its lower case search terms.
+     */
+    private final Map<String, String[]> termsByName = new HashMap<>();
+
+    /**
+     * Lower case search term to the names of the branches having it, sorted for prefix lookups.
+     */
+    private final TreeMap<String, Set<String>> namesByTerm = new TreeMap<>();
+
+    /**
+     * Trigram to the names of the branches having it in one of their terms.
+     */
+    private final Map<String, Set<String>> namesByGram = new HashMap<>();
+
+    private volatile boolean populated;
+
+    /**
+     * Gets whether the index has been filled with the branches of its project.
+     *
+     * @return true once {@link #populate(Iterable)} has been called
+     */
+    boolean isPopulated() {
+        return populated;
+    }
+
+    /**
+     * Replaces the contents of the index with the given items.
+     *
+     * @param items all branch projects of the project
+     */
+    void populate(@Nonnull Iterable<? extends Item> items) {
+        lock.writeLock().lock();
+        try {
+            termsByName.clear();
+            namesByTerm.clear();
+            namesByGram.clear();
+            for (Item item : items) {
+                add(item.getName(), item.getDisplayName());
+            }
+            populated = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a branch to the index, or updates it if it was already indexed.
+     *
+     * @param name        the branch project name
+     * @param displayName the branch project display name
+     */
+    public void put(@Nonnull String name, @CheckForNull String displayName) {
+        lock.writeLock().lock();
+        try {
+            remove0(name);
+            add(name, displayName);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a branch from the index.
+     *
+     * @param name the branch project name
+     */
+    public void remove(@Nonnull String name) {
+        lock.writeLock().lock();
+        try {
+            remove0(name);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the branches whose name or display name contains the query.  Branches with a term starting with the
+     * query come first, each group in name order.
+     *
+     * @param query the text to look for
+     * @param limit the maximum number of names to return
+     * @return names of the matching branch projects
+     */
+    @Nonnull
+    public List<String> search(@CheckForNull String query, int limit) {
+        String q = query == null ? "" : query.trim().toLowerCase(Locale.ENGLISH);
+        if (q.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        lock.readLock().lock();
+        try {
+            Set<String> prefixed = new Matches().addPrefixed(q).build();
+            Set<String> result = new LinkedHashSet<>();
+            addUpTo(result, prefixed, limit);
+
+            if (result.size() < limit) {
+                Set<String> contained = new Matches().addContaining(q).build();
+                addUpTo(result, contained, limit);
+            }
+
+            return new ArrayList<>(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void addUpTo(Set<String> result, Set<String> names, int limit) {
+        for (String name : names) {
+            if (result.size() >= limit) {
+                return;
+            }
+            result.add(name);
+        }
+    }
+
+    private void add(String name, String displayName) {
+        Set<String> terms = new LinkedHashSet<>();
+        terms.add(name.toLowerCase(Locale.ENGLISH));
+        if (displayName != null) {
+            terms.add(displayName.toLowerCase(Locale.ENGLISH));
+        }
+        termsByName.put(name, terms.toArray(new String[terms.size()]));
+
+        for (String term : terms) {
+            multiPut(namesByTerm, term, name);
+            for (String gram : grams(term)) {
+                multiPut(namesByGram, gram, name);
+            }
+        }
+    }
+
+    private void remove0(String name) {
+        String[] terms = termsByName.remove(name);
+        if (terms == null) {
+            return;
+        }
+
+        for (String term : terms) {
+            multiRemove(namesByTerm, term, name);
+            for (String gram : grams(term)) {
+                multiRemove(namesByGram, gram, name);
+            }
+        }
+    }
+
+    private static Set<String> grams(String term) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= term.length(); i++) {
+            grams.add(term.substring(i, i + GRAM));
+        }
+        return grams;
+    }
+
+    private static void multiPut(Map<String, Set<String>> map, String key, String name) {
+        Set<String> names = map.get(key);
+        if (names == null) {
+            names = new HashSet<>();
+            map.put(key, names);
+        }
+        names.add(name);
+    }
+
+    private static void multiRemove(Map<String, Set<String>> map, String key, String name) {
+        Set<String> names = map.get(key);
+        if (names != null) {
+            names.remove(name);
+            if (names.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Collects matching branch names in sorted order.  Must be used while holding the read lock.
+     */
+    private final class Matches {
+        private final Set<String> names = new TreeSet<>();
+
+        Matches addPrefixed(String q) {
+            for (Set<String> matches : namesByTerm.subMap(q, true, q + Character.MAX_VALUE, true).values()) {
+                names.addAll(matches);
+            }
+            return this;
+        }
+
+        Matches addContaining(String q) {
+            if (q.length() < GRAM) {
+                for (Map.Entry<String, Set<String>> entry : namesByTerm.entrySet()) {
+                    if (entry.getKey().contains(q)) {
+                        names.addAll(entry.getValue());
+                    }
+                }
+                return this;
+            }
+
+            // Start from the rarest trigram and verify the few remaining candidates
+            Set<String> candidates = null;
+            for (String gram : grams(q)) {
+                Set<String> posting = namesByGram.get(gram);
+                if (posting == null) {
+                    return this;
+                }
+                if (candidates == null || posting.size() < candidates.size()) {
+                    candidates = posting;
+                }
+            }
+
+            if (candidates != null) {
+                for (String name : candidates) {
+                    for (String term : termsByName.get(name)) {
+                        if (term.contains(q)) {
+                            names.add(name);
+                            break;
+                        }
+                    }
+                }
+            }
+            return this;
+        }
+
+        Set<String> build() {
+            return names;
+        }
+    }
+
+    /**
+     * Keeps the search indexes current as branch projects are created, renamed, changed or deleted.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class SearchIndexListener extends ItemListener {
+        @Override
+        public void onCreated(Item item) {
+            onUpdated(item);
+        }
+
+        @Override
+        public void onUpdated(Item item) {
+            BranchSearchIndex index = indexOf(item);
+            if (index != null) {
+                index.put(item.getName(), item.getDisplayName());
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            BranchSearchIndex index = indexOf(item);
+            if (index != null) {
+                index.remove(item.getName());
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            BranchSearchIndex index = indexOf(item);
+            if (index != null) {
+                index.remove(oldFullName.substring(oldFullName.lastIndexOf('/') + 1));
+                index.put(item.getName(), item.getDisplayName());
+            }
+        }
+
+        /**
+         * Gets the populated index of the multi-branch project owning a branch project.  Unpopulated indexes will
+         * pick up the change when they are populated.
+         *
+         * @param item the item
+         * @return the index, or null
+         */
+        @CheckForNull
+        private static BranchSearchIndex indexOf(Item item) {
+            if (item.getParent() instanceof TemplateDrivenMultiBranchProject) {
+                TemplateDrivenMultiBranchProject<?, ?> parent =
+                        (TemplateDrivenMultiBranchProject<?, ?>) item.getParent();
+                BranchSearchIndex index = parent.getSearchIndex(false);
+                if (item != parent.getTemplate() && index.isPopulated()) {
+                    return index;
+                }
+            }
+            return null;
+        }
+    }
+}
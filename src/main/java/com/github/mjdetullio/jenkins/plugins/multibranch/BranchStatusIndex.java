@@ -0,0 +1,365 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.BallColor;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.XStream2;
+import jenkins.util.Timer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compact, in-memory summary of the status and last build of each branch project of a
+ * {@link TemplateDrivenMultiBranchProject}.  Rendering large branch lists from this index avoids touching (and
+ * therefore loading) the last build of every branch.
+ * <br>
+ * Entries are computed from the branch project the first time they are requested and are then kept current by
+ * {@link StatusListener}.  They are also saved to the multi-branch project's directory, so after a restart the
+ * branches that are not building (typically most of them, idle or dead) are listed without loading any of their builds.
+ * An entry read from disk is only trusted while the project's next build number is the one recorded with it.
+ *
+ * @author Matthew DeTullio
+ */
+public final class BranchStatusIndex {
+
+    private static final String CLASSNAME = BranchStatusIndex.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    private static final long SAVE_DELAY_SECONDS = 10L;
+
+    static {
+        XSTREAM.alias("branch-status", Entry.class);
+    }
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final XmlFile file;
+
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Creates an index persisted to the given file.
+     *
+     * @param file where the index is saved
+     */
+    BranchStatusIndex(@Nonnull File file) {
+        this.file = new XmlFile(XSTREAM, file);
+    }
+
+    /**
+     * Reads the entries saved by an earlier run, if any.  Entries saved while a build was running are dropped, since
+     * that build is no longer running, so they are recomputed on first use.
+     */
+    @SuppressWarnings("unchecked")
+    void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            for (Map.Entry<String, Entry> e : ((Map<String, Entry>) file.read()).entrySet()) {
+                if (e.getValue() != null && !e.getValue().color.isAnimated()) {
+                    entries.put(e.getKey(), e.getValue());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file + "; branch status will be recomputed", e);
+        }
+    }
+
+    /**
+     * Gets the status of a branch project, computing it if it is not yet indexed.
+     *
+     * @param job the branch project
+     * @return the status
+     */
+    @Nonnull
+    public Entry get(@Nonnull Job<?, ?> job) {
+        Entry entry = entries.get(job.getName());
+        if (entry == null || entry.nextBuildNumber != job.getNextBuildNumber()) {
+            entry = Entry.of(job);
+            entries.put(job.getName(), entry);
+            changed();
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the status of a branch project as currently indexed, without computing it.  Never loads builds, so it is
+     * safe to call while holding the queue lock.
+     *
+     * @param name the name of the branch project
+     * @return the status, possibly out of date, or null if the branch project is not yet indexed
+     */
+    @CheckForNull
+    public Entry peek(@Nonnull String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Recomputes the status of a branch project.
+     *
+     * @param job the branch project
+     */
+    void update(@Nonnull Job<?, ?> job) {
+        entries.put(job.getName(), Entry.of(job));
+        changed();
+    }
+
+    /**
+     * Gives a branch project the status of the earlier build whose result it reused.  The branch project keeps its own
+     * last build number until it builds again.
+     *
+     * @param job      the branch project
+     * @param color    the status of the reused build
+     * @param time     the scheduled time of the reused build
+     * @param duration the duration of the reused build
+     */
+    void reuse(@Nonnull Job<?, ?> job, @Nonnull BallColor color, long time, long duration) {
+        Entry current = entries.get(job.getName());
+        entries.put(job.getName(), new Entry(job.getDisplayName(), color,
+                current == null ? 0 : current.lastBuildNumber, time, duration, job.getNextBuildNumber()));
+        changed();
+    }
+
+    /**
+     * Drops the status of a branch project.
+     *
+     * @param name the name of the branch project
+     */
+    void remove(@Nonnull String name) {
+        if (entries.remove(name) != null) {
+            changed();
+        }
+    }
+
+    /**
+     * Gets a number that changes whenever any status in the index changes, so that orderings computed from the
+     * index can tell whether they are still current.
+     *
+     * @return the version of the index
+     */
+    long getVersion() {
+        return version.get();
+    }
+
+    private void changed() {
+        version.incrementAndGet();
+        scheduleSave();
+    }
+
+    /**
+     * Saves the index a little later, so that bursts of changes are written once.
+     */
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    saveScheduled.set(false);
+                    try {
+                        file.write(new HashMap<>(entries));
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+                    }
+                }
+            }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Immutable status of one branch project.
+     */
+    public static final class Entry {
+        private final String displayName;
+
+        private final BallColor color;
+
+        private final int lastBuildNumber;
+
+        private final long lastBuildTime;
+
+        private final long lastBuildDuration;
+
+        private final int nextBuildNumber;
+
+        private Entry(String displayName, BallColor color, int lastBuildNumber, long lastBuildTime,
+                      long lastBuildDuration, int nextBuildNumber) {
+            this.displayName = displayName;
+            this.color = color;
+            this.lastBuildNumber = lastBuildNumber;
+            this.lastBuildTime = lastBuildTime;
+            this.lastBuildDuration = lastBuildDuration;
+            this.nextBuildNumber = nextBuildNumber;
+        }
+
+        @Nonnull
+        static Entry of(@Nonnull Job<?, ?> job) {
+            Run<?, ?> lastBuild = job.getLastBuild();
+            if (lastBuild == null) {
+                return new Entry(job.getDisplayName(), job.getIconColor(), 0, 0L, 0L, job.getNextBuildNumber());
+            }
+            return new Entry(job.getDisplayName(), job.getIconColor(), lastBuild.getNumber(),
+                    lastBuild.getTimeInMillis(), lastBuild.getDuration(), job.getNextBuildNumber());
+        }
+
+        @Nonnull
+        public String getDisplayName() {
+            return displayName;
+        }
+
+        @Nonnull
+        public BallColor getColor() {
+            return color;
+        }
+
+        /**
+         * Gets the number of the last build.
+         *
+         * @return the build number, or 0 if never built
+         */
+        public int getLastBuildNumber() {
+            return lastBuildNumber;
+        }
+
+        /**
+         * Gets the scheduled time of the last build.
+         *
+         * @return milliseconds since the epoch, or 0 if never built
+         */
+        public long getLastBuildTime() {
+            return lastBuildTime;
+        }
+
+        /**
+         * Gets the duration of the last build.
+         *
+         * @return milliseconds, or 0 if never built or still building
+         */
+        public long getLastBuildDuration() {
+            return lastBuildDuration;
+        }
+    }
+
+    /**
+     * Gets the index of the multi-branch project owning a branch project.
+     *
+     * @param item the item
+     * @return the index, or null if the item is not a branch project
+     */
+    @CheckForNull
+    private static BranchStatusIndex indexOf(Item item) {
+        if (item instanceof Job && item.getParent() instanceof TemplateDrivenMultiBranchProject) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = (TemplateDrivenMultiBranchProject<?, ?>) item.getParent();
+            if (item != parent.getTemplate()) {
+                return parent.getStatusIndex();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keeps the index current as builds start and finish.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class StatusListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            BranchStatusIndex index = indexOf(run.getParent());
+            if (index != null) {
+                index.update(run.getParent());
+            }
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            onStarted(run, listener);
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            BranchStatusIndex index = indexOf(run.getParent());
+            if (index != null) {
+                index.remove(run.getParent().getName());
+            }
+        }
+    }
+
+    /**
+     * Keeps the index current as branch projects are changed, renamed or deleted.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class ItemStatusListener extends ItemListener {
+        @Override
+        public void onUpdated(Item item) {
+            BranchStatusIndex index = indexOf(item);
+            if (index != null) {
+                index.update((Job<?, ?>) item);
+            }
+        }
+
+        @Override
+        public void onDeleted(Item item) {
+            BranchStatusIndex index = indexOf(item);
+            if (index != null) {
+                index.remove(item.getName());
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            BranchStatusIndex index = indexOf(item);
+            if (index != null) {
+                index.remove(oldFullName.substring(oldFullName.lastIndexOf('/') + 1));
+                index.update((Job<?, ?>) item);
+            }
+        }
+    }
+}
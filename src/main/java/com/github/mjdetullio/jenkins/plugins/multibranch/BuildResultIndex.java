@@ -0,0 +1,675 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Action;
+import hudson.model.BallColor;
+import hudson.model.InvisibleAction;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.XStream2;
+import jenkins.model.TransientActionFactory;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.api.SCMRevisionAction;
+import jenkins.util.Timer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Successful builds of the branch projects of a {@link TemplateDrivenMultiBranchProject}, keyed by the SCM source and
+ * the {@link RevisionHash content hash} of the revision they built, and the revision of the template they were
+ * configured from.  The head is not part of the key, so a build of one branch is found for every other branch of the
+ * same source pointing at the same commit.  Revisions without a content hash, such as Subversion revision numbers that
+ * name different content on every branch path, are never keyed and always build.
+ * <br>
+ * When {@link TemplateDrivenMultiBranchProject#isReuseBuildResults() enabled}, a branch about to build a revision that
+ * was already built successfully with the same template is not scheduled, so no executor is used.  Instead,
+ * the branch takes the status of the original build in the {@link BranchStatusIndex}, so branch lists show its ball
+ * colour, and the reuse is added to the branch's reused result history, shown on its page by
+ * {@link ReusedResultAction} with links to the original builds.  Only builds scheduled
+ * for a deterministic {@link SCMRevision} by branch indexing can be reused; builds started by hand always run.
+ * <br>
+ * The decision is made under the queue lock, so it only reads the in-memory {@link Origin} of the earlier build, the
+ * {@link BranchStatusIndex} and the {@link TemplatePrototype#peekRevision() last compiled template revision}.  The
+ * original build record is only loaded when the reuse is shown.
+ *
+ * @author Matthew DeTullio
+ */
+public final class BuildResultIndex {
+
+    private static final String CLASSNAME = BuildResultIndex.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    private static final XStream2 XSTREAM = new XStream2();
+
+    private static final long SAVE_DELAY_SECONDS = 10L;
+
+    /**
+     * Most successful builds remembered per multi-branch project.  The oldest are forgotten first.
+     */
+    private static final int MAX_ORIGINS = 4096;
+
+    /**
+     * Most reused results remembered per branch project.
+     */
+    private static final int MAX_HISTORY = 10;
+
+    static {
+        XSTREAM.alias("build-results", Data.class);
+        XSTREAM.alias("build-result", Origin.class);
+        XSTREAM.alias("reused-result", Reuse.class);
+    }
+
+    private final TemplateDrivenMultiBranchProject<?, ?> owner;
+
+    private final XmlFile file;
+
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+
+    private Data data = new Data();
+
+    /**
+     * Creates an index persisted to the given file.
+     *
+     * @param owner the multi-branch project
+     * @param file  where the index is saved
+     */
+    BuildResultIndex(@Nonnull TemplateDrivenMultiBranchProject<?, ?> owner, @Nonnull File file) {
+        this.owner = owner;
+        this.file = new XmlFile(XSTREAM, file);
+    }
+
+    /**
+     * Reads the entries saved by an earlier run, if any.
+     */
+    synchronized void load() {
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            data = (Data) file.read();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to read " + file + "; build results will not be reused until rebuilt", e);
+        }
+    }
+
+    /**
+     * Gets the key under which a build of the given SCM revision by a branch project can be reused by any branch of
+     * the same source.
+     *
+     * @param job              the branch project
+     * @param revision         the revision, may be null
+     * @param templateRevision the revision of the template, may be null
+     * @return the key, or null if builds of the revision cannot be shared across branches
+     */
+    @CheckForNull
+    static String keyOf(@Nonnull Job<?, ?> job, @CheckForNull SCMRevision revision,
+                        @CheckForNull String templateRevision) {
+        BranchProjectProperty<?, ?> property = job.getProperty(BranchProjectProperty.class);
+        if (revision == null || !revision.isDeterministic() || property == null || templateRevision == null) {
+            return null;
+        }
+
+        String hash = RevisionHash.of(revision);
+        return hash == null ? null : property.getBranch().getSourceId() + ":" + hash + "@" + templateRevision;
+    }
+
+    /**
+     * Gets the key of a build of the given SCM revision within its own branch project, used by
+     * {@link NoOpBuildFilter}.  Unlike {@link #keyOf}, it works for any SCM, since it is only compared with other
+     * builds of the same head.
+     *
+     * @param revision         the revision, may be null
+     * @param templateRevision the revision of the template, may be null
+     * @return the key, or null if builds of the revision cannot be compared
+     */
+    @CheckForNull
+    static String headKeyOf(@CheckForNull SCMRevision revision, @CheckForNull String templateRevision) {
+        if (revision == null || !revision.isDeterministic() || templateRevision == null) {
+            return null;
+        }
+        return revision + "@" + templateRevision;
+    }
+
+    /**
+     * Gets the revision of the template a build ran with, which is the one its branch project was configured from
+     * when the build started.  The template may have changed since.
+     *
+     * @param run the build
+     * @return the revision, or null if none was recorded
+     */
+    @CheckForNull
+    static String templateRevisionOf(@Nonnull Run<?, ?> run) {
+        BuiltTemplateAction action = run.getAction(BuiltTemplateAction.class);
+        return action == null ? null : action.revision;
+    }
+
+    /**
+     * Remembers a successful build.
+     *
+     * @param key the key of the build
+     * @param run the build
+     */
+    synchronized void recordOrigin(@Nonnull String key, @Nonnull Run<?, ?> run) {
+        data.origins.remove(key);
+        data.origins.put(key, new Origin(run.getParent().getName(), run.getNumber(), run.getResult(),
+                run.getTimeInMillis(), run.getDuration()));
+        scheduleSave();
+    }
+
+    /**
+     * Finds a successful build with the given key that still exists.  Only reads in-memory state: the build is
+     * assumed to exist while its branch project's indexed status has not gone back before it.
+     *
+     * @param key the key
+     * @return the build, or null
+     */
+    @CheckForNull
+    synchronized Origin findOrigin(@Nonnull String key) {
+        Origin origin = data.origins.get(key);
+        if (origin == null || !origin.isSuccess()) {
+            return null;
+        }
+
+        BranchStatusIndex.Entry status = owner.getStatusIndex().peek(origin.branch);
+        if (status == null || status.getLastBuildNumber() < origin.number) {
+            return null;
+        }
+        return origin;
+    }
+
+    /**
+     * Forgets a deleted build.
+     *
+     * @param branch the branch project name
+     * @param number the build number
+     */
+    synchronized void removeOrigin(@Nonnull String branch, int number) {
+        boolean removed = false;
+        for (Iterator<Origin> it = data.origins.values().iterator(); it.hasNext(); ) {
+            Origin origin = it.next();
+            if (branch.equals(origin.branch) && number == origin.number) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Records that a branch project reused the result of another build, adding it to the branch's history and giving
+     * the branch the status of the reused build.
+     *
+     * @param job      the branch project
+     * @param revision the revision the branch project was about to build
+     * @param origin   the reused build
+     */
+    void recordReuse(@Nonnull Job<?, ?> job, @Nonnull SCMRevision revision, @Nonnull Origin origin) {
+        Reuse reuse = new Reuse(revision.toString(), origin.branch, origin.number, System.currentTimeMillis());
+        synchronized (this) {
+            data.reuses.put(job.getName(), reuse);
+            List<Reuse> history = data.history().get(job.getName());
+            if (history == null) {
+                history = new ArrayList<>();
+                data.history().put(job.getName(), history);
+            }
+            history.add(0, reuse);
+            while (history.size() > MAX_HISTORY) {
+                history.remove(history.size() - 1);
+            }
+        }
+        scheduleSave();
+        owner.getStatusIndex().reuse(job, origin.getColor(), origin.time, origin.duration);
+    }
+
+    /**
+     * Gets the results reused by a branch project, most recent first.
+     *
+     * @param name the branch project name
+     * @return the reuses
+     */
+    @Nonnull
+    synchronized List<Reuse> getHistory(@Nonnull String name) {
+        List<Reuse> history = data.history().get(name);
+        return history == null ? Collections.<Reuse>emptyList() : new ArrayList<>(history);
+    }
+
+    /**
+     * Gets the result reused by a branch project since its last build.
+     *
+     * @param name the branch project name
+     * @return the reuse, or null
+     */
+    @CheckForNull
+    synchronized Reuse getReuse(@Nonnull String name) {
+        return data.reuses.get(name);
+    }
+
+    /**
+     * Forgets the result reused by a branch project, typically because it is building on its own.
+     *
+     * @param name the branch project name
+     */
+    synchronized void clearReuse(@Nonnull String name) {
+        if (data.reuses.remove(name) != null) {
+            scheduleSave();
+        }
+    }
+
+    /**
+     * Forgets everything about a branch project.
+     *
+     * @param name the branch project name
+     */
+    synchronized void remove(@Nonnull String name) {
+        data.reuses.remove(name);
+        data.history().remove(name);
+        for (Iterator<Map.Entry<String, Reuse>> it = data.reuses.entrySet().iterator(); it.hasNext(); ) {
+            if (name.equals(it.next().getValue().branch)) {
+                it.remove();
+            }
+        }
+        for (Iterator<Origin> it = data.origins.values().iterator(); it.hasNext(); ) {
+            if (name.equals(it.next().branch)) {
+                it.remove();
+            }
+        }
+        scheduleSave();
+    }
+
+    /**
+     * Saves the index a little later, so that bursts of changes are written once.
+     */
+    private void scheduleSave() {
+        if (saveScheduled.compareAndSet(false, true)) {
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    saveScheduled.set(false);
+                    synchronized (BuildResultIndex.this) {
+                        try {
+                            file.write(data);
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Failed to save " + file, e);
+                        }
+                    }
+                }
+            }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Persisted form of the index.
+     */
+    private static final class Data {
+        private final LinkedHashMap<String, Origin> origins = new LinkedHashMap<String, Origin>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Origin> eldest) {
+                return size() > MAX_ORIGINS;
+            }
+        };
+
+        private final HashMap<String, Reuse> reuses = new HashMap<>();
+
+        /**
+         * Reused results per branch project, most recent first.  Null when read from an older file.
+         */
+        private HashMap<String, List<Reuse>> history = new HashMap<>();
+
+        HashMap<String, List<Reuse>> history() {
+            if (history == null) {
+                history = new HashMap<>();
+            }
+            return history;
+        }
+    }
+
+    /**
+     * A successful build, summarized so that reuse can be decided without loading it.  Immutable.
+     */
+    static final class Origin {
+        private final String branch;
+
+        private final int number;
+
+        /**
+         * Null when read from an older file, in which case the build is not reused.
+         */
+        private final String result;
+
+        private final long time;
+
+        private final long duration;
+
+        private Origin(String branch, int number, Result result, long time, long duration) {
+            this.branch = branch;
+            this.number = number;
+            this.result = result == null ? null : result.toString();
+            this.time = time;
+            this.duration = duration;
+        }
+
+        boolean isSuccess() {
+            return Result.SUCCESS.toString().equals(result);
+        }
+
+        @Nonnull
+        BallColor getColor() {
+            return Result.fromString(result).color;
+        }
+
+        @Override
+        public String toString() {
+            return branch + " #" + number;
+        }
+    }
+
+    /**
+     * A build result reused by a branch project.  Immutable.
+     */
+    public static final class Reuse {
+        private final String revision;
+
+        private final String branch;
+
+        private final int number;
+
+        private final long time;
+
+        private Reuse(String revision, String branch, int number, long time) {
+            this.revision = revision;
+            this.branch = branch;
+            this.number = number;
+            this.time = time;
+        }
+
+        public String getRevision() {
+            return revision;
+        }
+
+        public String getBranch() {
+            return branch;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public Date getDate() {
+            return new Date(time);
+        }
+    }
+
+    /**
+     * Gets the index of the multi-branch project owning a branch project, if result reuse is enabled.
+     *
+     * @param item the item
+     * @return the index, or null
+     */
+    @CheckForNull
+    private static BuildResultIndex indexOf(Object item) {
+        if (item instanceof Job && ((Job<?, ?>) item).getParent() instanceof TemplateDrivenMultiBranchProject) {
+            TemplateDrivenMultiBranchProject<?, ?> parent =
+                    (TemplateDrivenMultiBranchProject<?, ?>) ((Job<?, ?>) item).getParent();
+            if (item != parent.getTemplate() && parent.isReuseBuildResults()) {
+                return parent.getBuildResultIndex();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the revision a build was scheduled for by branch indexing.
+     *
+     * @param actions the actions of the queue item or build
+     * @return the revision, or null
+     */
+    @CheckForNull
+    static SCMRevision revisionOf(@Nonnull Collection<? extends Action> actions) {
+        for (Action action : actions) {
+            if (action instanceof SCMRevisionAction) {
+                return ((SCMRevisionAction) action).getRevision();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Shows the results a branch project reused on its page, and links to the build it reused since its last build.
+     */
+    public static final class ReusedResultAction implements Action {
+        private final TemplateDrivenMultiBranchProject<?, ?> owner;
+
+        private final Reuse current;
+
+        private final List<Reuse> history;
+
+        ReusedResultAction(TemplateDrivenMultiBranchProject<?, ?> owner, Reuse current, List<Reuse> history) {
+            this.owner = owner;
+            this.current = current;
+            this.history = history;
+        }
+
+        /**
+         * Used by Jelly to list the reused results.
+         *
+         * @return the reused results, most recent first
+         */
+        public List<Reuse> getHistory() {
+            return history;
+        }
+
+        /**
+         * Used by Jelly to link to a reused build.  Loads the build, so it is only called while rendering.
+         *
+         * @param reuse the reused result
+         * @return the absolute URL of the build, or null if the build or its branch project is gone
+         */
+        @CheckForNull
+        public String getUrlOf(Reuse reuse) {
+            Job<?, ?> job = owner.getItem(reuse.branch);
+            Run<?, ?> origin = job == null ? null : job.getBuildByNumber(reuse.number);
+            return origin == null ? null : "/" + origin.getUrl();
+        }
+
+        @Override
+        public String getIconFileName() {
+            return current == null || getUrlOf(current) == null ? null : "blue.png";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return current == null ? null : Messages.BuildResultIndex_ReusedResult(
+                    current.branch, String.valueOf(current.number), current.revision);
+        }
+
+        @Override
+        public String getUrlName() {
+            return current == null ? null : getUrlOf(current);
+        }
+    }
+
+    /**
+     * Skips builds whose result can be reused.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class ReuseDecisionHandler extends Queue.QueueDecisionHandler {
+        @Override
+        public boolean shouldSchedule(Queue.Task p, List<Action> actions) {
+            BuildResultIndex index = indexOf(p);
+            if (index == null) {
+                return true;
+            }
+
+            SCMRevision revision = revisionOf(actions);
+            String key = keyOf((Job<?, ?>) p, revision, index.owner.getTemplatePrototype().peekRevision());
+            if (key == null) {
+                return true;
+            }
+
+            Origin origin = index.findOrigin(key);
+            if (origin == null) {
+                return true;
+            }
+
+            LOGGER.log(Level.FINE, "{0} reuses the result of {1} for {2}",
+                    new Object[]{((Job<?, ?>) p).getFullName(), origin, revision});
+            index.recordReuse((Job<?, ?>) p, revision, origin);
+            return false;
+        }
+    }
+
+    /**
+     * Remembers successful builds and forgets reused results once a branch builds on its own.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class ResultListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            BuildResultIndex index = indexOf(run.getParent());
+            if (index != null) {
+                index.clearReuse(run.getParent().getName());
+            }
+        }
+
+        @Override
+        public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            BuildResultIndex index = indexOf(run.getParent());
+            if (index == null || run.getResult() != Result.SUCCESS) {
+                return;
+            }
+
+            String key = keyOf(run.getParent(), revisionOf(run.getAllActions()), templateRevisionOf(run));
+            if (key != null) {
+                index.recordOrigin(key, run);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            BuildResultIndex index = indexOf(run.getParent());
+            if (index != null) {
+                index.removeOrigin(run.getParent().getName(), run.getNumber());
+            }
+        }
+    }
+
+    /**
+     * Records the template revision of the branch project on each of its builds.
+     */
+    public static final class BuiltTemplateAction extends InvisibleAction {
+        private final String revision;
+
+        BuiltTemplateAction(String revision) {
+            this.revision = revision;
+        }
+    }
+
+    /**
+     * Adds a {@link BuiltTemplateAction} to builds of branch projects as they start.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class BuiltTemplateListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            if (!(run.getParent().getParent() instanceof TemplateDrivenMultiBranchProject)) {
+                return;
+            }
+
+            BranchProjectProperty<?, ?> property = run.getParent().getProperty(BranchProjectProperty.class);
+            if (property != null && property.getTemplateRevision() != null) {
+                run.addAction(new BuiltTemplateAction(property.getTemplateRevision()));
+            }
+        }
+    }
+
+    /**
+     * Forgets deleted branch projects.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class ResultItemListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            BuildResultIndex index = indexOf(item);
+            if (index != null) {
+                index.remove(item.getName());
+            }
+        }
+    }
+
+    /**
+     * Shows the reused results on the branch project page.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class ReusedResultActionFactory extends TransientActionFactory<Job> {
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Nonnull
+        @Override
+        public Collection<? extends Action> createFor(@Nonnull Job target) {
+            BuildResultIndex index = indexOf(target);
+            List<Reuse> history = index == null ? Collections.<Reuse>emptyList() : index.getHistory(target.getName());
+            if (history.isEmpty()) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(
+                    new ReusedResultAction(index.owner, index.getReuse(target.getName()), history));
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import javax.annotation.CheckForNull;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many builds of the branch projects of one {@link TemplateDrivenMultiBranchProject} run at the same time,
+ * according to {@link TemplateDrivenMultiBranchProject#getMaxConcurrentBuilds()}.
+ * <br>
+ * Nothing is reserved while an item is only being considered, since other dispatchers may still block it afterwards.
+ * An item may run while the builds holding one of the project's {@link Slots}, plus the project's items already handed
+ * to an executor but not yet started, are fewer than the cap.  A build takes its slot when its item leaves the queue
+ * for an executor, or at the latest when it starts, and frees it when it is finalized.  Items handed to an executor are
+ * counted by {@link SlotQueueListener} as they leave the buildable state, so {@link #canRun} never walks the queue.
+ * Both counts are kept in an {@link AtomicInteger}, so they are read without locks.
+ *
+ * @author Matthew DeTullio
+ */
+@Extension
+public class ConcurrentBuildCap extends QueueTaskDispatcher {
+
+    @Override
+    public CauseOfBlockage canRun(Queue.Item item) {
+        TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(item.task);
+        if (parent == null || parent.getMaxConcurrentBuilds() <= 0) {
+            return null;
+        }
+
+        int max = parent.getMaxConcurrentBuilds();
+        Slots slots = parent.getBuildSlots();
+        if (slots.getUsed() + slots.getPending() < max) {
+            return null;
+        }
+        return new WaitingForSlot(parent.getDisplayName(), max);
+    }
+
+    @CheckForNull
+    private static TemplateDrivenMultiBranchProject<?, ?> parentOf(Object task) {
+        if (task instanceof Job && ((Job<?, ?>) task).getParent() instanceof TemplateDrivenMultiBranchProject) {
+            return (TemplateDrivenMultiBranchProject<?, ?>) ((Job<?, ?>) task).getParent();
+        }
+        return null;
+    }
+
+    /**
+     * Build slots of one multi-branch project, held by queue item id, and the items handed to an executor that have
+     * not left the queue yet.
+     */
+    static final class Slots {
+        private final AtomicInteger used = new AtomicInteger();
+
+        private final ConcurrentMap<Long, Boolean> holders = new ConcurrentHashMap<>();
+
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private final ConcurrentMap<Long, Boolean> pendingItems = new ConcurrentHashMap<>();
+
+        /**
+         * Counts an item that left the buildable state, usually for an executor, until it either leaves the queue or
+         * enters another state.
+         *
+         * @param id the queue item id
+         */
+        void pend(long id) {
+            if (pendingItems.putIfAbsent(id, Boolean.TRUE) == null) {
+                pending.incrementAndGet();
+            }
+        }
+
+        /**
+         * Stops counting an item as pending, if it was.
+         *
+         * @param id the queue item id
+         */
+        void unpend(long id) {
+            if (pendingItems.remove(id) != null) {
+                pending.decrementAndGet();
+            }
+        }
+
+        /**
+         * Takes a slot for a build, unless it already holds one.  Never refused, since the build is already running.
+         *
+         * @param id the queue item id of the build
+         */
+        void hold(long id) {
+            if (holders.putIfAbsent(id, Boolean.TRUE) == null) {
+                used.incrementAndGet();
+            }
+        }
+
+        /**
+         * Frees the slot held by a build, if any.
+         *
+         * @param id the queue item id of the build
+         */
+        void release(long id) {
+            if (holders.remove(id) != null) {
+                used.decrementAndGet();
+            }
+        }
+
+        /**
+         * Gets the number of slots in use.
+         *
+         * @return slots in use
+         */
+        int getUsed() {
+            return used.get();
+        }
+
+        /**
+         * Gets the number of items handed to an executor that have not left the queue yet.
+         *
+         * @return pending items
+         */
+        int getPending() {
+            return pending.get();
+        }
+    }
+
+    /**
+     * Shown for builds held back by the cap.
+     */
+    public static final class WaitingForSlot extends CauseOfBlockage {
+        private final String project;
+        private final int max;
+
+        WaitingForSlot(String project, int max) {
+            this.project = project;
+            this.max = max;
+        }
+
+        @Override
+        public String getShortDescription() {
+            return Messages.ConcurrentBuildCap_WaitingForSlot(project, max);
+        }
+    }
+
+    /**
+     * Counts items leaving the buildable state as pending until they leave the queue or go back to another state, takes
+     * the slot of items leaving the queue for an executor, and frees it for items that left without one.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class SlotQueueListener extends QueueListener {
+        @Override
+        public void onLeaveBuildable(Queue.BuildableItem bi) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(bi.task);
+            if (parent != null) {
+                parent.getBuildSlots().pend(bi.getId());
+            }
+        }
+
+        @Override
+        public void onEnterBuildable(Queue.BuildableItem bi) {
+            unpend(bi);
+        }
+
+        @Override
+        public void onEnterBlocked(Queue.BlockedItem bi) {
+            unpend(bi);
+        }
+
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            unpend(wi);
+        }
+
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(li.task);
+            if (parent == null) {
+                return;
+            }
+
+            // Hold before unpending, so the item is never missing from both counts
+            if (li.outcome == null) {
+                parent.getBuildSlots().release(li.getId());
+            } else {
+                parent.getBuildSlots().hold(li.getId());
+            }
+            parent.getBuildSlots().unpend(li.getId());
+        }
+
+        private static void unpend(Queue.Item item) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(item.task);
+            if (parent != null) {
+                parent.getBuildSlots().unpend(item.getId());
+            }
+        }
+    }
+
+    /**
+     * Holds the slots of running builds and frees them once finalized.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class SlotRunListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onStarted(Run<?, ?> run, TaskListener listener) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(run.getParent());
+            if (parent != null) {
+                parent.getBuildSlots().hold(run.getQueueId());
+            }
+        }
+
+        @Override
+        public void onFinalized(Run<?, ?> run) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(run.getParent());
+            if (parent != null) {
+                parent.getBuildSlots().release(run.getQueueId());
+            }
+        }
+    }
+}
@@ -27,7 +27,6 @@ import hudson.Extension;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Item;
-import jenkins.branch.Branch;
 import jenkins.branch.BranchProjectFactoryDescriptor;
 import jenkins.branch.MultiBranchProject;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -49,10 +48,8 @@ public final class FreeStyleBranchProjectFactory
     }
 
     @Override
-    public FreeStyleProject newInstance(Branch branch) {
-        FreeStyleProject project = new FreeStyleProject(getOwner(), branch.getEncodedName());
-        setBranch(project, branch);
-        return project;
+    protected FreeStyleProject newProject(String name) {
+        return new FreeStyleProject(getOwner(), name);
     }
 
     @Override
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Releases the first builds of newly created branch projects through the
+ * {@link TemplateDrivenMultiBranchProject#getInitialBuildBucket() token bucket} of their parent, so that indexing a
+ * repository with many branches does not start all of their builds at once.
+ * <br>
+ * A queue item takes a permit the first time it is allowed to run and keeps it until it leaves the queue, so an item
+ * that is let through but waits for an executor does not use up more permits.
+ *
+ * @author Matthew DeTullio
+ */
+@Extension
+public class InitialBuildThrottle extends QueueTaskDispatcher {
+
+    /**
+     * Ids of queue items that already took a permit.
+     */
+    private static final Set<Long> ADMITTED = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    @Override
+    public CauseOfBlockage canRun(Queue.Item item) {
+        if (!(item.task instanceof Job) || ADMITTED.contains(item.getId())) {
+            return null;
+        }
+
+        Job<?, ?> project = (Job<?, ?>) item.task;
+        if (!(project.getParent() instanceof TemplateDrivenMultiBranchProject) || project.getNextBuildNumber() > 1) {
+            return null;
+        }
+
+        TokenBucket bucket = ((TemplateDrivenMultiBranchProject<?, ?>) project.getParent()).getInitialBuildBucket();
+        if (bucket == null) {
+            return null;
+        }
+
+        if (bucket.tryAcquire()) {
+            ADMITTED.add(item.getId());
+            return null;
+        }
+        return new WaitingForSlot(bucket);
+    }
+
+    /**
+     * Shown for throttled first builds.
+     */
+    public static final class WaitingForSlot extends CauseOfBlockage {
+        private final int perMinute;
+
+        WaitingForSlot(TokenBucket bucket) {
+            this.perMinute = bucket.getPerMinute();
+        }
+
+        @Override
+        public String getShortDescription() {
+            return Messages.InitialBuildThrottle_WaitingForSlot(perMinute);
+        }
+    }
+
+    /**
+     * Forgets the permits of items leaving the queue.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class AdmissionListener extends QueueListener {
+        @Override
+        public void onLeft(Queue.LeftItem li) {
+            ADMITTED.remove(li.getId());
+        }
+    }
+}
@@ -27,7 +27,6 @@ import hudson.Extension;
 import hudson.ivy.IvyModuleSet;
 import hudson.ivy.IvyModuleSetBuild;
 import hudson.model.Item;
-import jenkins.branch.Branch;
 import jenkins.branch.BranchProjectFactoryDescriptor;
 import jenkins.branch.MultiBranchProject;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -49,10 +48,8 @@ public final class IvyBranchProjectFactory
     }
 
     @Override
-    public IvyModuleSet newInstance(Branch branch) {
-        IvyModuleSet project = new IvyModuleSet(getOwner(), branch.getEncodedName());
-        setBranch(project, branch);
-        return project;
+    protected IvyModuleSet newProject(String name) {
+        return new IvyModuleSet(getOwner(), name);
     }
 
     @Override
@@ -23,22 +23,59 @@
  */
 package com.github.mjdetullio.jenkins.plugins.multibranch;
 
-import hudson.BulkChange;
 import hudson.Extension;
+import hudson.matrix.Axis;
+import hudson.matrix.AxisList;
+import hudson.matrix.Combination;
 import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
 import hudson.matrix.MatrixProject;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.Item;
-import jenkins.branch.Branch;
+import hudson.model.Job;
+import hudson.model.JobProperty;
+import hudson.model.Queue;
+import hudson.model.queue.CauseOfBlockage;
+import hudson.model.queue.QueueListener;
+import hudson.model.queue.QueueTaskDispatcher;
+import hudson.security.ACL;
+import hudson.triggers.Trigger;
 import jenkins.branch.BranchProjectFactoryDescriptor;
 import jenkins.branch.MultiBranchProject;
+import jenkins.model.Jenkins;
+import jenkins.model.TransientActionFactory;
+import jenkins.util.Timer;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Creates matrix branch projects.  When {@link MatrixMultiBranchProject#isLazyConfigurations() enabled}, branch
+ * projects that were never built are created without axes, so they have a single default configuration instead of one
+ * per combination.  The axes of the template are put back by {@link Materializer} in the background when a build
+ * enters the queue, and the build is held by {@link MaterializationDispatcher} until the configurations exist.
+ * <br>
+ * When a template change leaves the axes, the combination filters and the child workspace alone, branch projects are
+ * reinitialized in place instead of reloaded, so their configurations are neither reloaded nor saved again.  This
+ * reaches into members of core that are not public, so it fails closed: if they cannot be found, or reinitializing
+ * fails in any way, the project is fully reloaded with {@link MatrixProject#onLoad} as for any other change.
+ *
  * @author Matthew DeTullio
  */
 public final class MatrixBranchProjectFactory
@@ -47,6 +84,30 @@ public final class MatrixBranchProjectFactory
     private static final String CLASSNAME = MatrixBranchProjectFactory.class.getName();
     private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
 
+    /**
+     * {@link MatrixProject#setAxes(AxisList)} rebuilds and saves the configurations, which must not happen before the
+     * project is loaded, so axes are left out through the field.
+     */
+    private static final Field AXES = axesField();
+
+    /**
+     * {@link JobProperty#setOwner(Job)} and {@link AbstractProject#updateTransientActions()}, which
+     * {@link #reloadInPlace(MatrixProject)} calls in place of a full load.
+     */
+    private static final Method SET_OWNER = method(JobProperty.class, "setOwner", Job.class);
+    private static final Method UPDATE_TRANSIENT_ACTIONS = method(AbstractProject.class, "updateTransientActions");
+
+    /**
+     * Whether {@link #reloadInPlace(MatrixProject)} can be used at all.
+     */
+    private static final boolean IN_PLACE = SET_OWNER != null && UPDATE_TRANSIENT_ACTIONS != null;
+
+    /**
+     * Full names of branch projects whose configurations are being created.
+     */
+    private static final Set<String> MATERIALIZING =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
     /**
      * No-op constructor used for data binding.
      */
@@ -56,10 +117,8 @@ public final class MatrixBranchProjectFactory
     }
 
     @Override
-    public MatrixProject newInstance(Branch branch) {
-        MatrixProject project = new MatrixProject(getOwner(), branch.getEncodedName());
-        setBranch(project, branch);
-        return project;
+    protected MatrixProject newProject(String name) {
+        return new MatrixProject(getOwner(), name);
     }
 
     @Override
@@ -72,38 +131,298 @@ public final class MatrixBranchProjectFactory
     }
 
     @Override
-    public MatrixProject decorate(MatrixProject project) {
-        if (!isProject(project)) {
-            return project;
+    protected void applyTemplateWorkarounds(MatrixProject project, MatrixProject template) throws IOException {
+        super.applyTemplateWorkarounds(project, template);
+
+        // Workaround for JENKINS-21017
+        if (template.hasChildCustomWorkspace()) {
+            project.setChildCustomWorkspace(template.getChildCustomWorkspace());
+        } else {
+            project.setChildCustomWorkspace(null);
+        }
+    }
+
+    @Override
+    protected void beforeLoad(MatrixProject project) {
+        if (AXES != null && getOwner() instanceof MatrixMultiBranchProject
+                && ((MatrixMultiBranchProject) getOwner()).isLazyConfigurations()
+                && project.getNextBuildNumber() <= 1 && !project.isInQueue() && !hasCombinations(project)) {
+            try {
+                AXES.set(project, new AxisList());
+            } catch (IllegalAccessException e) {
+                LOGGER.log(Level.WARNING, "Unable to leave out the axes of " + project.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Gets whether the configurations of the combinations of a branch project were already created, in which case
+     * leaving out its axes would throw them away.  A project whose axes were left out only has the default
+     * configuration.
+     *
+     * @param project the branch project
+     * @return true if the project has a configuration for any combination
+     */
+    private static boolean hasCombinations(MatrixProject project) {
+        for (MatrixConfiguration configuration : project.getItems()) {
+            if (!configuration.getCombination().isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean isStructureUnchanged(MatrixProject project, MatrixProject template) {
+        return IN_PLACE
+                && sameAxes(project.getAxes(), template.getAxes())
+                && Objects.equals(project.getCombinationFilter(), template.getCombinationFilter())
+                && Objects.equals(project.getTouchStoneCombinationFilter(), template.getTouchStoneCombinationFilter())
+                && Objects.equals(project.getChildCustomWorkspace(), template.getChildCustomWorkspace());
+    }
+
+    private static boolean sameAxes(AxisList a, AxisList b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            Axis x = a.get(i);
+            Axis y = b.get(i);
+            if (x.getClass() != y.getClass() || !x.getName().equals(y.getName())
+                    || !x.getValues().equals(y.getValues())) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        if (!(getOwner() instanceof MatrixMultiBranchProject)) {
-            throw new IllegalStateException(String.format("%s can only be used with %s.",
-                    MatrixBranchProjectFactory.class.getSimpleName(),
-                    MatrixMultiBranchProject.class.getSimpleName()));
+    /**
+     * Does what {@link MatrixProject#onLoad} does for a project whose settings were just replaced, except rebuilding
+     * its configurations, which read and may save the configuration of every combination.  Settings left unset by the
+     * template, such as the SCM or the execution strategy, are defaulted by a full reload instead.  Any failure,
+     * including a linkage error after an upgrade of core or matrix-project, makes the caller fall back to a full
+     * reload, which redoes every step taken here.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected boolean reloadInPlace(MatrixProject project) {
+        if (!IN_PLACE) {
+            return false;
         }
 
-        MatrixMultiBranchProject owner = (MatrixMultiBranchProject) getOwner();
+        if (project.getScm() == null || project.getExecutionStrategy() == null || project.triggers() == null) {
+            return false;
+        }
 
-        BulkChange bc = new BulkChange(project);
         try {
-            project = super.decorate(project);
+            for (JobProperty<?> property : project.getAllProperties()) {
+                SET_OWNER.invoke(property, project);
+            }
+            project.getBuildersList().setOwner(project);
+            project.getPublishersList().setOwner(project);
+            project.getBuildWrappersList().setOwner(project);
+            project.triggers().setOwner(project);
+            for (Trigger trigger : project.getTriggers().values()) {
+                trigger.start(project, true);
+            }
+            UPDATE_TRANSIENT_ACTIONS.invoke(project);
+            return true;
+        } catch (IllegalAccessException | InvocationTargetException | RuntimeException | LinkageError e) {
+            LOGGER.log(Level.WARNING, "Unable to update " + project.getName() + " in place, reloading it", e);
+            return false;
+        }
+    }
 
-            // Workaround for JENKINS-21017
-            if (owner.getTemplate().hasChildCustomWorkspace()) {
-                project.setChildCustomWorkspace(owner.getTemplate().getChildCustomWorkspace());
-            } else {
-                project.setChildCustomWorkspace(null);
+    @CheckForNull
+    private static Method method(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            Method method = type.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            return method;
+        } catch (NoSuchMethodException | SecurityException | LinkageError e) {
+            LOGGER.log(Level.WARNING, "Matrix branch projects will be reloaded on every template change", e);
+            return null;
+        }
+    }
+
+    @CheckForNull
+    private static Field axesField() {
+        try {
+            Field field = MatrixProject.class.getDeclaredField("axes");
+            field.setAccessible(true);
+            return field;
+        } catch (NoSuchFieldException | SecurityException e) {
+            LOGGER.log(Level.WARNING, "Matrix configurations of branch projects will not be created lazily", e);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the template of the matrix multi-branch project owning a branch project whose axes were left out.
+     *
+     * @param project the branch project
+     * @return the template, or null if the project has all its axes
+     */
+    @CheckForNull
+    private static MatrixProject templateOfDeferred(MatrixProject project) {
+        if (!(project.getParent() instanceof MatrixMultiBranchProject) || !project.getAxes().isEmpty()) {
+            return null;
+        }
+
+        MatrixProject template = ((MatrixMultiBranchProject) project.getParent()).getTemplate();
+        if (template == null || project == template || template.getAxes().isEmpty()) {
+            return null;
+        }
+        return template;
+    }
+
+    /**
+     * Puts back the axes of branch projects that left them out when a build enters the queue, creating their
+     * configurations.  The configurations are created on a {@link Timer} thread rather than under the queue lock, and
+     * only once: nothing is done for projects that already have their axes.  Applies whether or not lazy
+     * configurations are still enabled.
+     */
+    @SuppressWarnings("unused")
+    @Extension(optional = true)
+    public static final class Materializer extends QueueListener {
+        @Override
+        public void onEnterWaiting(Queue.WaitingItem wi) {
+            if (!(wi.task instanceof MatrixProject)) {
+                return;
             }
 
-            bc.commit();
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "Unable to update project " + project.getName(), e);
-        } finally {
-            bc.abort();
+            final MatrixProject project = (MatrixProject) wi.task;
+            if (templateOfDeferred(project) == null || !MATERIALIZING.add(project.getFullName())) {
+                return;
+            }
+
+            Timer.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+                    beginUpdate();
+                    try {
+                        MatrixProject template = templateOfDeferred(project);
+                        if (template != null) {
+                            project.setAxes(template.getAxes());
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Unable to create the configurations of " + project.getFullName(), e);
+                    } finally {
+                        endUpdate();
+                        MATERIALIZING.remove(project.getFullName());
+                        SecurityContextHolder.setContext(orig);
+                        Jenkins.getActiveInstance().getQueue().scheduleMaintenance();
+                    }
+                }
+            });
         }
+    }
 
-        return project;
+    /**
+     * Holds builds of branch projects back while {@link Materializer} creates their configurations.
+     */
+    @SuppressWarnings("unused")
+    @Extension(optional = true)
+    public static final class MaterializationDispatcher extends QueueTaskDispatcher {
+        @Override
+        public CauseOfBlockage canRun(Queue.Item item) {
+            if (item.task instanceof MatrixProject
+                    && MATERIALIZING.contains(((MatrixProject) item.task).getFullName())) {
+                return new CreatingConfigurations();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Shown for builds waiting for their configurations to be created.
+     */
+    public static final class CreatingConfigurations extends CauseOfBlockage {
+        @Override
+        public String getShortDescription() {
+            return Messages.MatrixBranchProjectFactory_CreatingConfigurations();
+        }
+    }
+
+    /**
+     * Shows the axes a branch project will build once its configurations are created.  The number of configurations
+     * is only computed when the action is rendered, not every time the actions of the project are listed.
+     */
+    public static final class PendingConfigurationsAction implements Action {
+        private final MatrixMultiBranchProject parent;
+
+        private final AxisList axes;
+
+        PendingConfigurationsAction(MatrixMultiBranchProject parent, AxisList axes) {
+            this.parent = parent;
+            this.axes = axes;
+        }
+
+        /**
+         * Used by Jelly to display the axes of the template.
+         *
+         * @return the axes
+         */
+        public List<Axis> getAxes() {
+            return axes;
+        }
+
+        /**
+         * Used by Jelly to display how many configurations will be created.  Only computed when the action is
+         * rendered.
+         *
+         * @return number of combinations passing the combination filter
+         */
+        public int getCombinationCount() {
+            String filter = parent.getTemplate().getCombinationFilter();
+            int count = 0;
+            for (Combination combination : axes.list()) {
+                if (combination.evalGroovyExpression(axes, filter)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        public String getIconFileName() {
+            return null;
+        }
+
+        @Override
+        public String getDisplayName() {
+            return null;
+        }
+
+        @Override
+        public String getUrlName() {
+            return null;
+        }
+    }
+
+    /**
+     * Adds {@link PendingConfigurationsAction} to branch projects that left out their axes.  Runs whenever the actions
+     * of a matrix project are listed, so it only looks at the axes held in memory.
+     */
+    @SuppressWarnings("unused")
+    @Extension(optional = true)
+    public static final class PendingConfigurationsActionFactory extends TransientActionFactory<MatrixProject> {
+        @Override
+        public Class<MatrixProject> type() {
+            return MatrixProject.class;
+        }
+
+        @Nonnull
+        @Override
+        public Collection<? extends Action> createFor(@Nonnull MatrixProject target) {
+            MatrixProject template = templateOfDeferred(target);
+            if (template == null) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(
+                    new PendingConfigurationsAction((MatrixMultiBranchProject) target.getParent(), template.getAxes()));
+        }
     }
 
     /**
@@ -28,14 +28,19 @@ import hudson.init.InitMilestone;
 import hudson.init.Initializer;
 import hudson.matrix.MatrixBuild;
 import hudson.matrix.MatrixProject;
+import hudson.model.Descriptor;
 import hudson.model.ItemGroup;
 import hudson.model.Items;
 import hudson.model.TopLevelItem;
 import jenkins.branch.BranchProjectFactory;
 import jenkins.branch.MultiBranchProjectDescriptor;
 import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
 import javax.annotation.Nonnull;
+import javax.servlet.ServletException;
+import java.io.IOException;
 
 /**
  * @author Alastair D'Silva
@@ -44,6 +49,8 @@ public final class MatrixMultiBranchProject extends TemplateDrivenMultiBranchPro
 
     private static final String UNUSED = "unused";
 
+    private boolean lazyConfigurations;
+
     /**
      * Constructor that specifies the {@link ItemGroup} for this project and the
      * project name.
@@ -55,6 +62,38 @@ public final class MatrixMultiBranchProject extends TemplateDrivenMultiBranchPro
         super(parent, name);
     }
 
+    /**
+     * Sets whether branch projects create their configurations only when they are first scheduled, in addition to the
+     * settings of {@link TemplateDrivenMultiBranchProject}.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    public void submit(StaplerRequest req, StaplerResponse rsp)
+            throws ServletException, Descriptor.FormException, IOException {
+        lazyConfigurations = req.getParameter("lazyConfigurations") != null;
+        super.submit(req, rsp);
+    }
+
+    /**
+     * Gets whether branch projects that were never built leave out their axes, so that their configurations are
+     * created when they are first scheduled.  Used by Jelly.
+     *
+     * @return true if configurations are created lazily
+     */
+    public boolean isLazyConfigurations() {
+        return lazyConfigurations;
+    }
+
+    /**
+     * Sets whether branch projects that were never built leave out their axes until they are first scheduled.
+     *
+     * @param lazyConfigurations true to create configurations lazily
+     */
+    public void setLazyConfigurations(boolean lazyConfigurations) {
+        this.lazyConfigurations = lazyConfigurations;
+    }
+
     @Override
     protected MatrixProject newTemplate() {
         return new MatrixProject(this, TemplateDrivenMultiBranchProject.TEMPLATE);
@@ -27,7 +27,6 @@ import hudson.Extension;
 import hudson.maven.MavenModuleSet;
 import hudson.maven.MavenModuleSetBuild;
 import hudson.model.Item;
-import jenkins.branch.Branch;
 import jenkins.branch.BranchProjectFactoryDescriptor;
 import jenkins.branch.MultiBranchProject;
 import org.kohsuke.stapler.DataBoundConstructor;
@@ -49,10 +48,8 @@ public final class MavenBranchProjectFactory
     }
 
     @Override
-    public MavenModuleSet newInstance(Branch branch) {
-        MavenModuleSet project = new MavenModuleSet(getOwner(), branch.getEncodedName());
-        setBranch(project, branch);
-        return project;
+    protected MavenModuleSet newProject(String name) {
+        return new MavenModuleSet(getOwner(), name);
     }
 
     @Override
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.Functions;
+import hudson.model.ManagementLink;
+
+import javax.annotation.Nonnull;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Administrative page showing how the plugin's caches and optimizations behave on this controller.
+ *
+ * @author Matthew DeTullio
+ */
+@Extension
+public class MultiBranchDiagnostics extends ManagementLink {
+
+    @Override
+    public String getIconFileName() {
+        return "monitor.png";
+    }
+
+    @Nonnull
+    @Override
+    public String getUrlName() {
+        return "multi-branch-diagnostics";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.MultiBranchDiagnostics_DisplayName();
+    }
+
+    @Override
+    public String getDescription() {
+        return Messages.MultiBranchDiagnostics_Description();
+    }
+
+    /**
+     * Used by Jelly to display the number of branch projects whose configuration was interned.
+     *
+     * @return number of projects
+     */
+    public long getInternedProjects() {
+        return BranchProjectInterner.getProjects();
+    }
+
+    /**
+     * Used by Jelly to display the number of configuration strings examined.
+     *
+     * @return number of strings
+     */
+    public long getStringsSeen() {
+        return BranchProjectInterner.getStringsSeen();
+    }
+
+    /**
+     * Used by Jelly to display the number of configuration strings shared with sibling branch projects.
+     *
+     * @return number of strings
+     */
+    public long getStringsShared() {
+        return BranchProjectInterner.getStringsShared();
+    }
+
+    /**
+     * Used by Jelly to display the estimated size of the strings deduplicated since startup.
+     *
+     * @return human readable size
+     */
+    public String getBytesDeduplicated() {
+        return Functions.humanReadableByteSize(BranchProjectInterner.getBytesDeduplicated());
+    }
+
+    /**
+     * Used by Jelly to display the number of orphaned directories moved to the trash.
+     *
+     * @return number of directories
+     */
+    public long getDirectoriesSwept() {
+        return OrphanedDirectorySweeper.getDirectoriesSwept();
+    }
+
+    /**
+     * Used by Jelly to display the number of files deleted from the trash.
+     *
+     * @return number of files
+     */
+    public long getFilesDeleted() {
+        return OrphanedDirectorySweeper.getFilesDeleted();
+    }
+
+    /**
+     * Used by Jelly to display the disk space reclaimed by the sweeper.
+     *
+     * @return human readable size
+     */
+    public String getBytesReclaimed() {
+        return Functions.humanReadableByteSize(OrphanedDirectorySweeper.getBytesReclaimed());
+    }
+
+    /**
+     * Used by Jelly to display the directory the sweeper is deleting.
+     *
+     * @return the path, or null if idle
+     */
+    public String getSweeping() {
+        return OrphanedDirectorySweeper.getCurrent();
+    }
+
+    /**
+     * Used by Jelly to display the sweeper's deletion budget.
+     *
+     * @return files per second
+     */
+    public int getSweeperFilesPerSecond() {
+        return OrphanedDirectorySweeper.getFilesPerSecond();
+    }
+
+    /**
+     * Used by Jelly to display the number of timer builds dropped because the branch head was already built.
+     *
+     * @return number of builds
+     */
+    public long getSuppressedBuilds() {
+        return NoOpBuildFilter.getSuppressed();
+    }
+
+    /**
+     * Used by Jelly to display the load phases as columns.
+     *
+     * @return the phases
+     */
+    public List<StartupProfile.Phase> getStartupPhases() {
+        return Arrays.asList(StartupProfile.Phase.values());
+    }
+
+    /**
+     * Used by Jelly to display the startup timings, most expensive project first.
+     *
+     * @return the timings of each project
+     */
+    public List<StartupProfile.Entry> getStartupProfile() {
+        return StartupProfile.getEntries();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Cause;
+import hudson.model.CauseAction;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.triggers.TimerTrigger;
+import jenkins.scm.api.SCMRevision;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Drops timer-triggered builds of branch projects whose head has not changed since their last successful build, when
+ * {@link TemplateDrivenMultiBranchProject#isSuppressNoOpBuilds() enabled}.
+ * <br>
+ * The head revision of each branch is the last one branch indexing scheduled a build for, and the built revision is
+ * taken from the {@link jenkins.scm.api.SCMRevisionAction} of the branch's last build, if that build succeeded.  Both
+ * are kept in an in-memory {@link Revisions} index, so deciding needs neither a call to the SCM nor loading any build
+ * records.  Until both are known, for example after a restart or a build without a revision, builds are not
+ * suppressed.  A template change also lets the next builds run, since the template revision is part of the compared
+ * keys.
+ *
+ * @author Matthew DeTullio
+ */
+@Extension
+public class NoOpBuildFilter extends Queue.QueueDecisionHandler {
+
+    private static final String CLASSNAME = NoOpBuildFilter.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    private static final AtomicLong SUPPRESSED = new AtomicLong();
+
+    @Override
+    public boolean shouldSchedule(Queue.Task p, List<Action> actions) {
+        TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(p);
+        if (parent == null) {
+            return true;
+        }
+
+        String name = ((Job<?, ?>) p).getName();
+        SCMRevision revision = BuildResultIndex.revisionOf(actions);
+        if (revision != null) {
+            parent.getHeadRevisions().head(name,
+                    BuildResultIndex.headKeyOf(revision, parent.getTemplatePrototype().peekRevision()));
+            return true;
+        }
+
+        if (!parent.isSuppressNoOpBuilds() || !isTimerOnly(actions) || !parent.getHeadRevisions().isBuilt(name)) {
+            return true;
+        }
+
+        SUPPRESSED.incrementAndGet();
+        LOGGER.log(Level.FINE, "Suppressed timer build of {0}; its head was already built",
+                ((Job<?, ?>) p).getFullName());
+        return false;
+    }
+
+    /**
+     * Used by {@link MultiBranchDiagnostics} to display the number of suppressed builds.
+     *
+     * @return number of builds
+     */
+    static long getSuppressed() {
+        return SUPPRESSED.get();
+    }
+
+    private static boolean isTimerOnly(List<Action> actions) {
+        boolean timer = false;
+        for (Action action : actions) {
+            if (action instanceof CauseAction) {
+                for (Cause cause : ((CauseAction) action).getCauses()) {
+                    if (!(cause instanceof TimerTrigger.TimerTriggerCause)) {
+                        return false;
+                    }
+                    timer = true;
+                }
+            }
+        }
+        return timer;
+    }
+
+    @CheckForNull
+    private static TemplateDrivenMultiBranchProject<?, ?> parentOf(Object item) {
+        if (item instanceof Job && ((Job<?, ?>) item).getParent() instanceof TemplateDrivenMultiBranchProject) {
+            TemplateDrivenMultiBranchProject<?, ?> parent =
+                    (TemplateDrivenMultiBranchProject<?, ?>) ((Job<?, ?>) item).getParent();
+            if (item != parent.getTemplate()) {
+                return parent;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Head and last successfully built revision keys of the branch projects of one multi-branch project.
+     */
+    static final class Revisions {
+        private final ConcurrentMap<String, String> heads = new ConcurrentHashMap<>();
+
+        private final ConcurrentMap<String, String> built = new ConcurrentHashMap<>();
+
+        void head(@Nonnull String name, @CheckForNull String key) {
+            put(heads, name, key);
+        }
+
+        void built(@Nonnull String name, @CheckForNull String key) {
+            put(built, name, key);
+        }
+
+        /**
+         * Gets whether the last successful build of a branch project was of its current head.
+         *
+         * @param name the branch project name
+         * @return true if a build of the head would do nothing new
+         */
+        boolean isBuilt(@Nonnull String name) {
+            String head = heads.get(name);
+            return head != null && head.equals(built.get(name));
+        }
+
+        void remove(@Nonnull String name) {
+            heads.remove(name);
+            built.remove(name);
+        }
+
+        private static void put(ConcurrentMap<String, String> map, String name, String key) {
+            if (key == null) {
+                map.remove(name);
+            } else {
+                map.put(name, key);
+            }
+        }
+    }
+
+    /**
+     * Records the revision of every completed build, with the template revision it started with.  A build that did not
+     * succeed, or that has no revision, such as one started by hand, leaves the built revision of its branch unknown,
+     * so the next timer build runs.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class BuiltRevisionListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, @Nonnull TaskListener listener) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(run.getParent());
+            if (parent == null) {
+                return;
+            }
+
+            String key = null;
+            if (run.getResult() == Result.SUCCESS) {
+                key = BuildResultIndex.headKeyOf(BuildResultIndex.revisionOf(run.getAllActions()),
+                        BuildResultIndex.templateRevisionOf(run));
+            }
+            parent.getHeadRevisions().built(run.getParent().getName(), key);
+        }
+    }
+
+    /**
+     * Forgets deleted branch projects.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class RevisionItemListener extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            TemplateDrivenMultiBranchProject<?, ?> parent = parentOf(item);
+            if (parent != null) {
+                parent.getHeadRevisions().remove(item.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Item;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Empties the trash directories of {@link TemplateDrivenMultiBranchProject}s and, for projects that opt in, removes
+ * directories left behind in their branches directory, such as the leftovers of interrupted branch project creation.
+ * <br>
+ * Directories are first renamed into the project's trash directory, which is instant and takes them out of sight, and
+ * are then deleted file by file within an I/O budget of {@code filesPerSecond} (system property
+ * {@code com.github.mjdetullio.jenkins.plugins.multibranch.OrphanedDirectorySweeper.filesPerSecond}, default 200), so
+ * that large deletions do not saturate the disk.  Archived dead branch projects go through the trash the same way.
+ * <br>
+ * A directory is only considered orphaned when no loaded item uses it as its root directory, it holds neither a
+ * {@code config.xml} nor a {@code builds} directory, and it has been untouched for an hour, so branch projects that
+ * failed to load, are being created or are being restored are left alone.
+ *
+ * @author Matthew DeTullio
+ */
+@Extension
+public class OrphanedDirectorySweeper extends AsyncPeriodicWork {
+
+    private static final String CLASSNAME = OrphanedDirectorySweeper.class.getName();
+
+    private static final String TRASH_DIR = "trash";
+
+    private static final long GRACE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Maximum number of files deleted per second.
+     */
+    private static final int FILES_PER_SECOND = Math.max(1, Integer.getInteger(CLASSNAME + ".filesPerSecond", 200));
+
+    private static final AtomicLong DIRECTORIES_SWEPT = new AtomicLong();
+    private static final AtomicLong FILES_DELETED = new AtomicLong();
+    private static final AtomicLong BYTES_RECLAIMED = new AtomicLong();
+
+    private static volatile String current;
+
+    private long windowStart;
+
+    private int windowFiles;
+
+    public OrphanedDirectorySweeper() {
+        super("Multi-branch orphaned directory sweeper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return HOUR;
+    }
+
+    /**
+     * Gets the number of orphaned directories moved to the trash since startup.
+     *
+     * @return number of directories
+     */
+    public static long getDirectoriesSwept() {
+        return DIRECTORIES_SWEPT.get();
+    }
+
+    /**
+     * Gets the number of files deleted from the trash since startup.
+     *
+     * @return number of files
+     */
+    public static long getFilesDeleted() {
+        return FILES_DELETED.get();
+    }
+
+    /**
+     * Gets the disk space reclaimed since startup.
+     *
+     * @return bytes
+     */
+    public static long getBytesReclaimed() {
+        return BYTES_RECLAIMED.get();
+    }
+
+    /**
+     * Gets the trash directory currently being deleted.
+     *
+     * @return the path, or null if idle
+     */
+    public static String getCurrent() {
+        return current;
+    }
+
+    /**
+     * Gets the deletion budget.
+     *
+     * @return files per second
+     */
+    public static int getFilesPerSecond() {
+        return FILES_PER_SECOND;
+    }
+
+    /**
+     * Renames a directory into the trash directory of a project, to be deleted in the background.
+     *
+     * @param project the multi-branch project
+     * @param dir     the directory to throw away
+     * @return the directory in the trash, or null if it could not be moved
+     */
+    static File moveToTrash(@Nonnull TemplateDrivenMultiBranchProject<?, ?> project, @Nonnull File dir) {
+        File trash = new File(project.getRootDir(), TRASH_DIR);
+        if (!trash.isDirectory() && !trash.mkdirs()) {
+            return null;
+        }
+
+        File target = new File(trash, dir.getName() + "-" + System.currentTimeMillis());
+        return dir.renameTo(target) ? target : null;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (TemplateDrivenMultiBranchProject<?, ?> project
+                : Jenkins.getActiveInstance().getAllItems(TemplateDrivenMultiBranchProject.class)) {
+            if (project.isSweepOrphanedDirectories()) {
+                moveOrphansToTrash(project, listener);
+            }
+            emptyTrash(new File(project.getRootDir(), TRASH_DIR), listener);
+        }
+    }
+
+    /**
+     * Moves the orphaned directories of a project's branches directory to its trash.
+     *
+     * @param project  the multi-branch project
+     * @param listener the task listener
+     */
+    void moveOrphansToTrash(TemplateDrivenMultiBranchProject<?, ?> project, TaskListener listener) {
+        File[] dirs = project.getJobsDir().listFiles();
+        if (dirs == null) {
+            return;
+        }
+
+        Set<File> inUse = new HashSet<>();
+        inUse.add(project.getTemplate().getRootDir().getAbsoluteFile());
+        for (Item item : project.getItems()) {
+            inUse.add(item.getRootDir().getAbsoluteFile());
+        }
+
+        long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+        for (File dir : dirs) {
+            if (!dir.isDirectory() || inUse.contains(dir.getAbsoluteFile()) || dir.lastModified() > cutoff
+                    || new File(dir, "config.xml").exists() || new File(dir, "builds").exists()) {
+                continue;
+            }
+
+            File target = moveToTrash(project, dir);
+            if (target != null) {
+                DIRECTORIES_SWEPT.incrementAndGet();
+                listener.getLogger().println("Moved orphaned " + dir + " to " + target);
+            } else {
+                listener.error("Unable to move " + dir + " to the trash");
+            }
+        }
+    }
+
+    private void emptyTrash(File trash, TaskListener listener) throws InterruptedException {
+        File[] dirs = trash.listFiles();
+        if (dirs == null) {
+            return;
+        }
+
+        for (File dir : dirs) {
+            current = dir.getPath();
+            try {
+                long filesBefore = FILES_DELETED.get();
+                long bytesBefore = BYTES_RECLAIMED.get();
+                delete(dir);
+                listener.getLogger().printf("Deleted %s: %d files, %d bytes%n", dir,
+                        FILES_DELETED.get() - filesBefore, BYTES_RECLAIMED.get() - bytesBefore);
+            } finally {
+                current = null;
+            }
+        }
+    }
+
+    /**
+     * Deletes a file or directory tree depth-first, pausing to stay within the budget.  Symbolic links are deleted,
+     * not followed.
+     */
+    private void delete(@Nonnull File file) throws InterruptedException {
+        if (file.isDirectory() && !isSymlink(file)) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    delete(child);
+                }
+            }
+        }
+
+        throttle();
+        long length = file.isFile() ? file.length() : 0L;
+        if (file.delete()) {
+            FILES_DELETED.incrementAndGet();
+            BYTES_RECLAIMED.addAndGet(length);
+        }
+    }
+
+    private static boolean isSymlink(File file) {
+        return Files.isSymbolicLink(file.toPath());
+    }
+
+    /**
+     * Sleeps out the rest of the current second once it has used up its budget.
+     */
+    private void throttle() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000L) {
+            windowStart = now;
+            windowFiles = 0;
+        }
+
+        if (++windowFiles > FILES_PER_SECOND) {
+            Thread.sleep(Math.max(1L, 1000L - (now - windowStart)));
+            windowStart = System.currentTimeMillis();
+            windowFiles = 1;
+        }
+    }
+}
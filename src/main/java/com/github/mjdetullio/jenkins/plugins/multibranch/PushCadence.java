@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring buffer of the intervals between the last few events of a branch, used to adapt its quiet period to how often
+ * the branch is pushed to.
+ * <br>
+ * While events arrive in a burst, the quiet period is twice their median interval, so the next push of the burst is
+ * likely to be folded into the same build.  An event arriving after more than the upper bound since the previous one
+ * is isolated and gets the lower bound, so it is not delayed.
+ *
+ * @author Matthew DeTullio
+ */
+final class PushCadence {
+
+    private static final int SIZE = 8;
+
+    private static final long MILLIS_PER_SECOND = TimeUnit.SECONDS.toMillis(1);
+
+    private final long[] intervals = new long[SIZE];
+
+    private int next;
+
+    private int count;
+
+    private long last = -1L;
+
+    /**
+     * Records an event.
+     *
+     * @param now the current time in milliseconds
+     */
+    synchronized void record(long now) {
+        if (last >= 0L && now >= last) {
+            intervals[next] = now - last;
+            next = (next + 1) % SIZE;
+            count = Math.min(count + 1, SIZE);
+        }
+        last = now;
+    }
+
+    /**
+     * Gets the quiet period to use after the last recorded event.
+     *
+     * @param min the lower bound in seconds
+     * @param max the upper bound in seconds
+     * @return the quiet period in seconds
+     */
+    synchronized int quietPeriod(int min, int max) {
+        long maxMillis = max * MILLIS_PER_SECOND;
+        if (count == 0 || intervals[(next + SIZE - 1) % SIZE] > maxMillis) {
+            return min;
+        }
+
+        // Median of the intervals within the burst range; longer ones separate bursts
+        long[] burst = new long[count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (intervals[i] <= maxMillis) {
+                burst[n++] = intervals[i];
+            }
+        }
+        Arrays.sort(burst, 0, n);
+        long median = burst[n / 2];
+
+        long seconds = (2L * median + MILLIS_PER_SECOND - 1L) / MILLIS_PER_SECOND;
+        return (int) Math.max(min, Math.min(max, seconds));
+    }
+
+    /**
+     * Gets when the quiet period started by the last recorded event ends.
+     *
+     * @param min the lower bound in seconds
+     * @param max the upper bound in seconds
+     * @return the time in milliseconds, or 0 if no event was recorded
+     */
+    synchronized long quietUntil(int min, int max) {
+        return last < 0L ? 0L : last + quietPeriod(min, max) * MILLIS_PER_SECOND;
+    }
+
+    /**
+     * Takes over the history of another cadence, typically of the property a branch project had before its
+     * configuration was replaced.
+     *
+     * @param other the cadence to copy
+     */
+    void copyFrom(PushCadence other) {
+        long[] otherIntervals;
+        int otherNext;
+        int otherCount;
+        long otherLast;
+        synchronized (other) {
+            otherIntervals = other.intervals.clone();
+            otherNext = other.next;
+            otherCount = other.count;
+            otherLast = other.last;
+        }
+        synchronized (this) {
+            System.arraycopy(otherIntervals, 0, intervals, 0, SIZE);
+            next = otherNext;
+            count = otherCount;
+            last = otherLast;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import jenkins.plugins.git.AbstractGitSCMSource;
+import jenkins.scm.api.SCMRevision;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * Identifies the content of an {@link SCMRevision} independently of the head it was found on, so that
+ * {@link BuildResultIndex} can reuse a build of one branch for another branch pointing at the same commit.
+ * <br>
+ * Only SCMs whose revision ids name content, like a Git commit SHA, can provide a hash.  Revisions of other SCMs, such
+ * as Subversion, whose revision numbers name different content on every branch path, have no hash and their results
+ * are never shared across branches.
+ *
+ * @author Matthew DeTullio
+ */
+public abstract class RevisionHash implements ExtensionPoint {
+
+    /**
+     * Gets the content hash of a revision.
+     *
+     * @param revision the revision
+     * @return the hash, or null if this extension does not know the revision's SCM
+     */
+    @CheckForNull
+    public abstract String hashOf(@Nonnull SCMRevision revision);
+
+    /**
+     * Gets the content hash of a revision from the first extension that knows its SCM.  Only reads in-memory state.
+     *
+     * @param revision the revision
+     * @return the hash, or null if the revision is not content-addressed
+     */
+    @CheckForNull
+    static String of(@Nonnull SCMRevision revision) {
+        for (RevisionHash extension : ExtensionList.lookup(RevisionHash.class)) {
+            String hash = extension.hashOf(revision);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Commit SHAs of Git revisions.
+     */
+    @SuppressWarnings("unused")
+    @Extension(optional = true)
+    public static final class GitRevisionHash extends RevisionHash {
+        @CheckForNull
+        @Override
+        public String hashOf(@Nonnull SCMRevision revision) {
+            if (revision instanceof AbstractGitSCMSource.SCMRevisionImpl) {
+                return ((AbstractGitSCMSource.SCMRevisionImpl) revision).getHash();
+            }
+            return null;
+        }
+    }
+}
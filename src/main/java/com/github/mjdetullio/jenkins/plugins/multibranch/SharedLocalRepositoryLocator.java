@@ -0,0 +1,436 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.maven.MavenModule;
+import hudson.maven.MavenModuleSet;
+import hudson.maven.MavenModuleSetBuild;
+import hudson.maven.local_repo.LocalRepositoryLocator;
+import hudson.maven.local_repo.LocalRepositoryLocatorDescriptor;
+import hudson.model.Item;
+import hudson.model.Node;
+import hudson.model.Result;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maven local repository shared by the branches of a multi-branch project, with a private overlay per branch.
+ * <br>
+ * Each node keeps one shared repository per multi-branch project.  A branch builds against its own repository, which
+ * is seeded from the shared one the first time the branch builds on the node, so the first build of a new branch
+ * downloads almost nothing.  Only files that {@code _remote.repositories} lists as downloaded from a remote repository,
+ * their checksums and the metadata of remote repositories are shared; artifacts a branch installs itself, and
+ * snapshots, which branches must not see from each other, never are.  Release artifacts are immutable, so they are
+ * hard linked rather than copied where possible, except for artifacts of the modules the branch builds, which
+ * {@code mvn install} would overwrite through the link.  Maven's metadata files are always copied, since Maven
+ * rewrites them.  Artifacts a branch downloads are added to the shared repository after each successful or unstable
+ * build, and the repositories of a branch are deleted from all nodes with the branch project.
+ * <br>
+ * Selected as the local repository of the template.  Projects outside of a multi-branch project get a private
+ * repository in their workspace.
+ *
+ * @author Matthew DeTullio
+ */
+public class SharedLocalRepositoryLocator extends LocalRepositoryLocator {
+
+    private static final String CLASSNAME = SharedLocalRepositoryLocator.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    private static final String REPOSITORIES_DIR = "maven-repositories";
+
+    private static final String SHARED_DIR = "shared";
+
+    private static final String BRANCHES_DIR = "branches";
+
+    private static final String SNAPSHOT_SUFFIX = "-SNAPSHOT";
+
+    /**
+     * No-op constructor used for data binding.
+     */
+    @DataBoundConstructor
+    public SharedLocalRepositoryLocator() {
+        // No-op
+    }
+
+    @Override
+    public FilePath locate(MavenModuleSetBuild build) {
+        FilePath root = repositoriesRoot(build);
+        if (root == null) {
+            FilePath workspace = build.getWorkspace();
+            return workspace == null ? null : workspace.child(".repository");
+        }
+
+        FilePath shared = root.child(SHARED_DIR);
+        FilePath branch = root.child(BRANCHES_DIR).child(build.getProject().getName());
+        try {
+            if (!branch.exists() && shared.exists()) {
+                shared.act(new Merge(branch.getRemote(), reactorOf(build.getProject())));
+            }
+        } catch (IOException e) {
+            // The branch repository is filled by downloads instead
+            LOGGER.log(Level.WARNING, "Unable to seed " + branch + " from " + shared, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return branch;
+    }
+
+    /**
+     * Gets the directory of the repositories of the multi-branch project owning a build, on the node it is built on.
+     *
+     * @param build the build
+     * @return the directory, or null if the build is not of a branch project or its node is gone
+     */
+    @CheckForNull
+    private static FilePath repositoriesRoot(MavenModuleSetBuild build) {
+        MavenModuleSet project = build.getProject();
+        Node node = build.getBuiltOn();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        if (nodeRoot == null || !(project.getParent() instanceof TemplateDrivenMultiBranchProject)) {
+            return null;
+        }
+
+        TemplateDrivenMultiBranchProject<?, ?> parent = (TemplateDrivenMultiBranchProject<?, ?>) project.getParent();
+        return nodeRoot.child(REPOSITORIES_DIR).child(Util.getDigestOf(parent.getFullName()));
+    }
+
+    /**
+     * Gets the repository paths of the modules built by a project, such as {@code com/example/app}.
+     *
+     * @param project the project
+     * @return the {@code groupId/artifactId} paths
+     */
+    @Nonnull
+    private static Set<String> reactorOf(MavenModuleSet project) {
+        Set<String> paths = new HashSet<>();
+        for (MavenModule module : project.getModules()) {
+            paths.add(module.getModuleName().groupId.replace('.', '/') + "/" + module.getModuleName().artifactId);
+        }
+        return paths;
+    }
+
+    /**
+     * Adds the downloaded release artifacts of the directory it is invoked on that are missing from the target
+     * directory on the same node.  Files the target already has are left alone, except for {@code _remote.repositories}
+     * files, which get the entries of the added artifacts, so concurrent merges are safe.
+     */
+    private static final class Merge extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private static final String REMOTE_REPOSITORIES = "_remote.repositories";
+
+        private final String target;
+
+        /**
+         * Repository paths of modules whose artifacts are copied rather than linked.
+         */
+        private final Set<String> reactor;
+
+        Merge(String target, Set<String> reactor) {
+            this.target = target;
+            this.reactor = reactor;
+        }
+
+        @Override
+        public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            final Path from = f.toPath();
+            final Path to = new File(target).toPath();
+            Files.createDirectories(to);
+
+            Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+                /**
+                 * Remote entries of the {@code _remote.repositories} file of the directories being visited.
+                 */
+                private final Map<Path, List<String>> remote = new HashMap<>();
+
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (dir.getFileName().toString().endsWith(SNAPSHOT_SUFFIX)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    remote.put(dir, remoteEntries(dir.resolve(REMOTE_REPOSITORIES)));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    List<String> entries = remote.remove(dir);
+                    Path dest = to.resolve(from.relativize(dir)).resolve(REMOTE_REPOSITORIES);
+                    if (entries != null && !entries.isEmpty() && Files.isDirectory(dest.getParent())) {
+                        merge(entries, dest);
+                    }
+                    return super.postVisitDirectory(dir, exc);
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path dest = to.resolve(from.relativize(file));
+                    if (!attrs.isRegularFile() || Files.exists(dest)
+                            || !isDownloaded(file.getFileName().toString(), remote.get(file.getParent()))) {
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    try {
+                        Files.createDirectories(dest.getParent());
+                        if (isMetadata(file) || isReactor(from.relativize(file)) || !link(dest, file)) {
+                            copy(file, dest);
+                        }
+                    } catch (FileAlreadyExistsException e) {
+                        // Added concurrently by another merge
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return null;
+        }
+
+        /**
+         * Reads the entries of a {@code _remote.repositories} file that name a remote repository, such as
+         * {@code app-1.0.jar>central=}.  Entries of installed files have an empty repository and are left out.
+         */
+        private static List<String> remoteEntries(Path file) throws IOException {
+            List<String> entries = new ArrayList<>();
+            if (Files.isRegularFile(file)) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    int gt = line.indexOf('>');
+                    if (!line.startsWith("#") && gt > 0 && gt + 1 < line.length() && line.charAt(gt + 1) != '=') {
+                        entries.add(line);
+                    }
+                }
+            }
+            return entries;
+        }
+
+        /**
+         * Gets whether a file was downloaded from a remote repository: it or the file it is a checksum of is listed
+         * as remote, or it is the metadata of a remote repository.
+         */
+        private static boolean isDownloaded(String name, List<String> remote) {
+            if (name.startsWith("maven-metadata-") && name.endsWith(".xml")) {
+                return !"maven-metadata-local.xml".equals(name);
+            }
+            if ("resolver-status.properties".equals(name)) {
+                return true;
+            }
+
+            String artifact = name.endsWith(".sha1") || name.endsWith(".md5")
+                    ? name.substring(0, name.lastIndexOf('.')) : name;
+            if (remote != null) {
+                for (String entry : remote) {
+                    if (entry.startsWith(artifact + ">")) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean isReactor(Path relative) {
+            String path = relative.toString().replace(File.separatorChar, '/');
+            for (String module : reactor) {
+                if (path.startsWith(module + "/")) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean isMetadata(Path file) {
+            String name = file.getFileName().toString();
+            return name.startsWith("maven-metadata") || "resolver-status.properties".equals(name);
+        }
+
+        /**
+         * Adds remote entries to a {@code _remote.repositories} file, keeping the entries it already has, so that
+         * artifacts added to a directory that was shared before are known as downloaded too.  Merges on a node run in
+         * the same agent process, so holding a lock while the file is read and rewritten keeps them from losing each
+         * other's entries.
+         */
+        private static void merge(List<String> entries, Path dest) throws IOException {
+            synchronized (Merge.class) {
+                Set<String> merged = new LinkedHashSet<>();
+                if (Files.isRegularFile(dest)) {
+                    merged.addAll(Files.readAllLines(dest, StandardCharsets.UTF_8));
+                }
+                if (merged.addAll(entries)) {
+                    write(merged, dest);
+                }
+            }
+        }
+
+        /**
+         * Writes the entries of a {@code _remote.repositories} file through a temporary file.
+         */
+        private static void write(Collection<String> entries, Path dest) throws IOException {
+            Path tmp = Files.createTempFile(dest.getParent(), ".merge", ".tmp");
+            try {
+                Files.write(tmp, entries, StandardCharsets.UTF_8);
+                Files.move(tmp, dest, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        private static boolean link(Path link, Path existing) throws FileAlreadyExistsException {
+            try {
+                Files.createLink(link, existing);
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (IOException | UnsupportedOperationException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Copies through a temporary file, so readers of the target never see a partial file.
+         */
+        private static void copy(Path file, Path dest) throws IOException {
+            Path tmp = Files.createTempFile(dest.getParent(), ".merge", ".tmp");
+            try {
+                Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+                Files.move(tmp, dest, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * Adds the release artifacts downloaded by a branch to the shared repository of its project.
+     */
+    @SuppressWarnings("unused")
+    @Extension(optional = true)
+    public static final class PublishListener extends RunListener<MavenModuleSetBuild> {
+        @Override
+        public void onCompleted(MavenModuleSetBuild build, @Nonnull TaskListener listener) {
+            Result result = build.getResult();
+            if (result == null || !result.isBetterOrEqualTo(Result.UNSTABLE)
+                    || !(build.getProject().getLocalRepository() instanceof SharedLocalRepositoryLocator)) {
+                return;
+            }
+
+            FilePath root = repositoriesRoot(build);
+            if (root == null) {
+                return;
+            }
+
+            try {
+                FilePath branch = root.child(BRANCHES_DIR).child(build.getProject().getName());
+                if (branch.exists()) {
+                    branch.act(new Merge(root.child(SHARED_DIR).getRemote(), reactorOf(build.getProject())));
+                }
+            } catch (IOException e) {
+                listener.getLogger().println("Unable to share downloaded Maven artifacts: " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Deletes the repositories of deleted branch projects from every online node, in the background.
+     */
+    @SuppressWarnings("unused")
+    @Extension(optional = true)
+    public static final class BranchRepositoryCleaner extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            if (!(item instanceof MavenModuleSet) || !(item.getParent() instanceof TemplateDrivenMultiBranchProject)
+                    || !(((MavenModuleSet) item).getLocalRepository() instanceof SharedLocalRepositoryLocator)) {
+                return;
+            }
+
+            final String path = REPOSITORIES_DIR + "/" + Util.getDigestOf(item.getParent().getFullName()) + "/"
+                    + BRANCHES_DIR + "/" + item.getName();
+            Timer.get().submit(new Runnable() {
+                @Override
+                public void run() {
+                    Jenkins jenkins = Jenkins.getActiveInstance();
+                    List<Node> nodes = new ArrayList<>(jenkins.getNodes());
+                    nodes.add(jenkins);
+                    for (Node node : nodes) {
+                        FilePath nodeRoot = node.getRootPath();
+                        if (nodeRoot == null) {
+                            continue;
+                        }
+                        try {
+                            nodeRoot.child(path).deleteRecursive();
+                        } catch (IOException e) {
+                            LOGGER.log(Level.WARNING, "Unable to delete " + path + " on " + node.getNodeName(), e);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * {@link SharedLocalRepositoryLocator}'s descriptor.
+     */
+    @SuppressWarnings("unused")
+    @Extension(optional = true)
+    public static class DescriptorImpl extends LocalRepositoryLocatorDescriptor {
+        @Nonnull
+        @Override
+        public String getDisplayName() {
+            return "Shared by the branches of the multi-branch project, with a private overlay per branch";
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.model.listeners.ItemListener;
+import org.jvnet.localizer.Localizable;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Records how long each phase of loading each {@link TemplateDrivenMultiBranchProject} takes during startup, for
+ * {@link MultiBranchDiagnostics}.
+ * <br>
+ * Recording stops once Jenkins has loaded all items; from then on {@link #start()} returns 0 without reading the
+ * clock and {@link #record(String, Phase, long)} returns immediately.
+ *
+ * @author Matthew DeTullio
+ */
+public final class StartupProfile {
+
+    private static final String CLASSNAME = StartupProfile.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    /**
+     * Number of projects logged when startup completes.
+     */
+    private static final int LOGGED_OFFENDERS = 5;
+
+    private static final ConcurrentMap<String, AtomicLongArray> TIMINGS = new ConcurrentHashMap<>();
+
+    private static volatile boolean recording = true;
+
+    private StartupProfile() {
+    }
+
+    /**
+     * Phases of loading a multi-branch project.
+     */
+    public enum Phase {
+        /**
+         * {@code AbstractFolder.onLoad}, which includes loading every branch project and {@link #VIEWS}.
+         */
+        LOAD(Messages._StartupProfile_Phase_LOAD(), true),
+        /**
+         * {@code initViews}, part of {@link #LOAD}.
+         */
+        VIEWS(Messages._StartupProfile_Phase_VIEWS(), false),
+        /**
+         * {@code init3}, which includes {@link #TEMPLATE}.
+         */
+        INIT(Messages._StartupProfile_Phase_INIT(), true),
+        /**
+         * Reading and loading the template, part of {@link #INIT}.
+         */
+        TEMPLATE(Messages._StartupProfile_Phase_TEMPLATE(), false),
+        /**
+         * Sharing configuration strings of the branch projects.
+         */
+        INTERN(Messages._StartupProfile_Phase_INTERN(), true);
+
+        private final Localizable displayName;
+        private final boolean topLevel;
+
+        Phase(Localizable displayName, boolean topLevel) {
+            this.displayName = displayName;
+            this.topLevel = topLevel;
+        }
+
+        public String getDisplayName() {
+            return displayName.toString();
+        }
+    }
+
+    /**
+     * Starts timing a phase.
+     *
+     * @return the start time to pass to {@link #record(String, Phase, long)}, or 0 if not recording
+     */
+    static long start() {
+        return recording ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records the time spent in a phase since {@code start}.
+     *
+     * @param project the full name of the multi-branch project
+     * @param phase   the phase
+     * @param start   the value returned by {@link #start()}
+     */
+    static void record(@Nonnull String project, @Nonnull Phase phase, long start) {
+        if (start == 0L || !recording) {
+            return;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        AtomicLongArray timings = TIMINGS.get(project);
+        if (timings == null) {
+            AtomicLongArray created = new AtomicLongArray(Phase.values().length);
+            timings = TIMINGS.putIfAbsent(project, created);
+            if (timings == null) {
+                timings = created;
+            }
+        }
+        timings.addAndGet(phase.ordinal(), elapsed);
+    }
+
+    /**
+     * Gets the recorded timings, most expensive project first.
+     *
+     * @return the timings of each project
+     */
+    @Nonnull
+    public static List<Entry> getEntries() {
+        List<Entry> entries = new ArrayList<>(TIMINGS.size());
+        for (Map.Entry<String, AtomicLongArray> e : TIMINGS.entrySet()) {
+            entries.add(new Entry(e.getKey(), e.getValue()));
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry o1, Entry o2) {
+                return Long.compare(o2.totalMillis, o1.totalMillis);
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Stops recording and logs the slowest projects.
+     */
+    static void completed() {
+        recording = false;
+
+        List<Entry> entries = getEntries();
+        for (Entry entry : entries.subList(0, Math.min(LOGGED_OFFENDERS, entries.size()))) {
+            StringBuilder sb = new StringBuilder("Loaded ").append(entry.project).append(" in ")
+                    .append(entry.totalMillis).append(" ms");
+            for (Phase phase : Phase.values()) {
+                sb.append(", ").append(phase.getDisplayName()).append(' ').append(entry.getMillis(phase)).append(" ms");
+            }
+            LOGGER.info(sb.toString());
+        }
+    }
+
+    /**
+     * Stops recording once all items are loaded, which core signals after the reactor finished.
+     */
+    @SuppressWarnings("unused")
+    @Extension
+    public static final class Completion extends ItemListener {
+        @Override
+        public void onLoaded() {
+            completed();
+        }
+    }
+
+    /**
+     * Load timings of one multi-branch project.
+     */
+    public static final class Entry {
+        private final String project;
+        private final long[] millis;
+        private final long totalMillis;
+
+        private Entry(String project, AtomicLongArray nanos) {
+            this.project = project;
+            this.millis = new long[nanos.length()];
+
+            long total = 0L;
+            for (Phase phase : Phase.values()) {
+                millis[phase.ordinal()] = TimeUnit.NANOSECONDS.toMillis(nanos.get(phase.ordinal()));
+                if (phase.topLevel) {
+                    total += millis[phase.ordinal()];
+                }
+            }
+            this.totalMillis = total;
+        }
+
+        public String getProject() {
+            return project;
+        }
+
+        public long getMillis(Phase phase) {
+            return millis[phase.ordinal()];
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+    }
+}
@@ -24,6 +24,7 @@
 package com.github.mjdetullio.jenkins.plugins.multibranch;
 
 import hudson.BulkChange;
+import hudson.Util;
 import hudson.XmlFile;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
@@ -39,14 +40,17 @@ import jenkins.model.Jenkins;
 import jenkins.scm.api.SCMHead;
 import jenkins.security.NotReallyRoleSensitiveCallable;
 import jenkins.util.xml.XMLUtils;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.xml.sax.SAXException;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -60,6 +64,226 @@ public abstract class TemplateDrivenBranchProjectFactory<P extends AbstractProje
     private static final String CLASSNAME = TemplateDrivenBranchProjectFactory.class.getName();
     private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
 
+    /**
+     * Nesting depth of branch project updates made by this factory on the current thread.  Configuration loaded
+     * outside of them may change a branch project in ways its recorded template revision does not account for.
+     */
+    private static final ThreadLocal<int[]> UPDATING = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    private String seedWorkspaceFrom;
+
+    /**
+     * Gets the name of the branch whose workspace seeds the empty workspaces of other branches.
+     *
+     * @return the branch project name, or null if workspaces are not seeded
+     * @see WorkspaceSeeder
+     */
+    @CheckForNull
+    public String getSeedWorkspaceFrom() {
+        return seedWorkspaceFrom;
+    }
+
+    /**
+     * Sets the name of the branch whose workspace seeds the empty workspaces of other branches.
+     *
+     * @param seedWorkspaceFrom the branch project name, or null or empty to not seed workspaces
+     */
+    @DataBoundSetter
+    public void setSeedWorkspaceFrom(@CheckForNull String seedWorkspaceFrom) {
+        this.seedWorkspaceFrom = Util.fixEmptyAndTrim(seedWorkspaceFrom);
+    }
+
+    /**
+     * Gets whether the current thread is updating a branch project on behalf of this factory.
+     *
+     * @return true if configuration loaded now keeps the branch project in line with the template
+     */
+    static boolean isUpdating() {
+        return UPDATING.get()[0] > 0;
+    }
+
+    /**
+     * Marks the start of a branch project update made on behalf of this factory.  Must be paired with
+     * {@link #endUpdate()}.
+     */
+    static void beginUpdate() {
+        UPDATING.get()[0]++;
+    }
+
+    /**
+     * Marks the end of a branch project update started with {@link #beginUpdate()}.
+     */
+    static void endUpdate() {
+        UPDATING.get()[0]--;
+    }
+
+    /**
+     * Creates a new, empty project that has the owner of this factory as its parent.  Nothing is saved.
+     *
+     * @param name the project name
+     * @return the new project
+     */
+    protected abstract P newProject(String name);
+
+    /**
+     * Creates a branch project from the template, writing its configuration exactly once.  branch-api calls this for
+     * one head at a time while indexing and has no hook for handing over a batch of new heads, so there is no batched
+     * variant; the template is parsed once per revision through the {@link TemplatePrototype} instead.
+     * <br>
+     * {@inheritDoc}
+     */
+    @Override
+    public P newInstance(Branch branch) {
+        P restored = restoreFromArchive(branch);
+        if (restored != null) {
+            return restored;
+        }
+
+        try {
+            return createFromTemplate(branch, getTemplateOwner().getTemplatePrototype().get());
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to create project " + branch.getEncodedName() + " from template", e);
+            P project = newProject(branch.getEncodedName());
+            setBranch(project, branch);
+            return project;
+        }
+    }
+
+    /**
+     * Brings back a branch project that was archived while its branch was dead, with its build history.
+     *
+     * @param branch the branch that reappeared
+     * @return the restored and decorated project, or null if the branch was not archived
+     */
+    private P restoreFromArchive(Branch branch) {
+        BranchArchive archive = getTemplateOwner().getBranchArchive();
+        if (!archive.contains(branch.getEncodedName())) {
+            return null;
+        }
+
+        try {
+            Item item = archive.load(branch.getEncodedName());
+            if (isProject(item)) {
+                @SuppressWarnings("unchecked")
+                P project = (P) item;
+                return decorate(setBranch(project, branch));
+            }
+        } catch (IOException | InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Unable to restore archived project " + branch.getEncodedName(), e);
+        }
+        return null;
+    }
+
+    /**
+     * Builds a branch project in memory from the template prototype, then saves it once.
+     *
+     * @param branch    the branch
+     * @param prototype the compiled template configuration
+     * @return the new project
+     * @throws IOException if the project cannot be saved
+     */
+    private P createFromTemplate(Branch branch, TemplatePrototype.Compiled prototype) throws IOException {
+        String name = branch.getEncodedName();
+        P project = newProject(name);
+
+        beginUpdate();
+        BulkChange bc = new BulkChange(project);
+        try {
+            prototype.applyTo(project);
+            beforeLoad(project);
+            project.onLoad(getOwner(), name);
+
+            // The template is always disabled and has no SCM; restore settings managed by this plugin
+            setBranch(project, branch);
+            project.getProperty(BranchProjectProperty.class).setTemplateRevision(prototype.getRevision());
+            project.setScm(branch.getScm());
+            project.setDisplayName(null);
+            applyTemplateWorkarounds(project, getTemplateOwner().getTemplate());
+            project.enable();
+
+            project = super.decorate(project);
+
+            bc.commit();
+        } finally {
+            bc.abort();
+            endUpdate();
+        }
+
+        BranchProjectInterner.intern(project);
+        return project;
+    }
+
+    /**
+     * Copies settings of the template that are not carried over by its configuration XML (JENKINS-21017).  Called
+     * while the project is in a {@link BulkChange}.
+     *
+     * @param project  the branch project
+     * @param template the template project
+     * @throws IOException if a setting cannot be applied
+     */
+    protected void applyTemplateWorkarounds(P project, P template) throws IOException {
+        project.setBuildDiscarder(template.getBuildDiscarder());
+        project.setCustomWorkspace(template.getCustomWorkspace());
+
+        TemplateDrivenMultiBranchProject<P, B> owner = getTemplateOwner();
+        if (owner.isAdaptiveQuietPeriod()) {
+            // AdaptiveQuietPeriod holds queued builds for longer as the branch's push cadence requires
+            project.setQuietPeriod(owner.getQuietPeriodMin());
+        } else {
+            // Undo an adapted quiet period once adaptive mode is turned off
+            project.setQuietPeriod(template.getHasCustomQuietPeriod() ? template.getQuietPeriod() : null);
+        }
+    }
+
+    /**
+     * Called once the template configuration has been applied to a branch project and before the project is loaded
+     * with it, which is the last point at which settings can be changed without their side effects.
+     *
+     * @param project the branch project
+     */
+    protected void beforeLoad(P project) {
+        // No-op by default
+    }
+
+    /**
+     * Gets whether a new revision of the template leaves the parts of a branch project that are expensive to reload
+     * unchanged, so that {@link #reloadInPlace(AbstractProject)} can be used instead of reloading the project.
+     * Called before the new configuration is applied, so the project still has its old settings.
+     *
+     * @param project  the branch project
+     * @param template the template project, with its new settings
+     * @return true if the project can be updated in place, false by default
+     */
+    protected boolean isStructureUnchanged(P project, P template) {
+        return false;
+    }
+
+    /**
+     * Reinitializes a branch project after the template configuration was applied to it, without a full
+     * {@link AbstractProject#onLoad onLoad}.  Only called when {@link #isStructureUnchanged} allowed it.
+     *
+     * @param project the branch project
+     * @return true if done, false to fall back to reloading the project
+     */
+    protected boolean reloadInPlace(P project) {
+        return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TemplateDrivenMultiBranchProject<P, B> getTemplateOwner() {
+        if (!(getOwner() instanceof TemplateDrivenMultiBranchProject)) {
+            throw new IllegalStateException(String.format("%s can only be used with %s.",
+                    TemplateDrivenBranchProjectFactory.class.getSimpleName(),
+                    TemplateDrivenMultiBranchProject.class.getSimpleName()));
+        }
+        return (TemplateDrivenMultiBranchProject<P, B>) getOwner();
+    }
+
     @Nonnull
     @Override
     public Branch getBranch(@Nonnull P project) {
@@ -71,12 +295,19 @@ public abstract class TemplateDrivenBranchProjectFactory<P extends AbstractProje
          *
          * Fudge some generic Branch with the expectation that indexing will soon reset the Branch with proper values,
          * or that it will be converted to Branch.Dead and the guessed values for sourceId and properties won't matter.
+         *
+         * This is a read path, so the fudged Branch is only queued to be saved in the background.  Later reads get the
+         * same queued Branch until it is saved.
          */
         if (property == null) {
+            Branch pending = BranchRepairQueue.pending(project);
+            if (pending != null) {
+                return pending;
+            }
+
             Branch branch = new Branch("unknown", new SCMHead(project.getDisplayName()), project.getScm(),
                     Collections.<BranchProperty>emptyList());
-            setBranch(project, branch);
-            return branch;
+            return BranchRepairQueue.request(this, project, branch);
         }
 
         return property.getBranch();
@@ -85,28 +316,48 @@ public abstract class TemplateDrivenBranchProjectFactory<P extends AbstractProje
     @Nonnull
     @Override
     public P setBranch(@Nonnull P project, @Nonnull Branch branch) {
-        BranchProjectProperty property = project.getProperty(BranchProjectProperty.class);
+        synchronized (project) {
+            BranchProjectProperty property = project.getProperty(BranchProjectProperty.class);
+            boolean died = branch instanceof Branch.Dead
+                    && (property == null || !(property.getBranch() instanceof Branch.Dead));
 
-        BulkChange bc = new BulkChange(project);
-        try {
-            if (property == null) {
-                project.addProperty(new BranchProjectProperty<P, B>(branch));
-            } else {
-                property.setBranch(branch);
+            beginUpdate();
+            BulkChange bc = new BulkChange(project);
+            try {
+                if (property == null) {
+                    project.addProperty(new BranchProjectProperty<P, B>(branch));
+                } else {
+                    property.setBranch(branch);
+                }
+                project.setScm(branch.getScm());
+                bc.commit();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to set BranchProjectProperty", e);
+                bc.abort();
+            } finally {
+                endUpdate();
+            }
+        }
+
+        // Dead branches are archived later, outside of indexing
+        if (died && getOwner() instanceof TemplateDrivenMultiBranchProject) {
+            TemplateDrivenMultiBranchProject<?, ?> owner = (TemplateDrivenMultiBranchProject<?, ?>) getOwner();
+            if (owner.isArchiveDeadBranches()) {
+                owner.getBranchArchive().schedule(project.getName());
             }
-            project.setScm(branch.getScm());
-            bc.commit();
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "Unable to set BranchProjectProperty", e);
-            bc.abort();
         }
 
         return project;
     }
 
     /**
-     * Decorates projects by using {@link #updateByXml(AbstractProject, Source)} and saving the configuration,
-     * rather than only updating the project in memory.
+     * Decorates projects by using {@link #updateByXml(AbstractProject, Source, boolean)} and saving the configuration,
+     * rather than only updating the project in memory.  Projects already configured from the current revision of the
+     * template are not reloaded, and neither are projects decorated outside a pending {@link TemplatePropagation},
+     * which reloads them itself.
+     * <br>
+     * Decorating and {@link #setBranch setting the branch} lock the project, so that branch indexing and a
+     * propagation updating the same project do not overwrite each other's branch or configuration.
      *
      * @param project the project to decorate
      * @return the project that was just decorated
@@ -117,42 +368,63 @@ public abstract class TemplateDrivenBranchProjectFactory<P extends AbstractProje
             return project;
         }
 
-        if (!(getOwner() instanceof TemplateDrivenMultiBranchProject)) {
-            throw new IllegalStateException(String.format("%s can only be used with %s.",
-                    TemplateDrivenBranchProjectFactory.class.getSimpleName(),
-                    TemplateDrivenMultiBranchProject.class.getSimpleName()));
-        }
+        TemplateDrivenMultiBranchProject<P, B> owner = getTemplateOwner();
 
-        TemplateDrivenMultiBranchProject<P, B> owner = (TemplateDrivenMultiBranchProject<P, B>) getOwner();
+        synchronized (project) {
+            Branch branch = getBranch(project);
+            String displayName = project.getDisplayNameOrNull();
+            boolean wasDisabled = project.isDisabled();
+            BranchProjectProperty oldProperty = project.getProperty(BranchProjectProperty.class);
+            TemplatePropagation propagation = owner.getTemplatePropagation();
+            boolean deferred = oldProperty != null && propagation != null && propagation.isDeferring();
 
-        Branch branch = getBranch(project);
-        String displayName = project.getDisplayNameOrNull();
-        boolean wasDisabled = project.isDisabled();
+            beginUpdate();
+            BulkChange bc = new BulkChange(project);
+            try {
+                String revision;
+                if (deferred) {
+                    // A pending propagation is about to reload the project with the newest template
+                    revision = oldProperty.getTemplateRevision();
+                } else {
+                    String xml = owner.getTemplate().getConfigFile().readRaw();
+                    revision = Util.getDigestOf(xml);
 
-        BulkChange bc = new BulkChange(project);
-        try {
-            updateByXml(project, new StreamSource(owner.getTemplate().getConfigFile().readRaw()));
+                    /*
+                     * Reloading the configuration reloads everything hanging off the project, such as all
+                     * configurations of a matrix project, so skip it when the project already has this revision of
+                     * the template, and avoid it when the parts it would rebuild did not change.
+                     */
+                    if (oldProperty == null || !revision.equals(oldProperty.getTemplateRevision())) {
+                        updateByXml(project, new StreamSource(new StringReader(xml)),
+                                oldProperty != null && isStructureUnchanged(project, owner.getTemplate()));
+                    }
+                }
 
-            // Restore settings managed by this plugin
-            setBranch(project, branch);
-            project.setDisplayName(displayName);
-            project.setScm(branch.getScm());
+                // Restore settings managed by this plugin
+                setBranch(project, branch);
+                BranchProjectProperty property = project.getProperty(BranchProjectProperty.class);
+                if (oldProperty != null && property != oldProperty) {
+                    property.getCadence().copyFrom(oldProperty.getCadence());
+                }
+                property.setTemplateRevision(revision);
+                project.setDisplayName(displayName);
+                project.setScm(branch.getScm());
 
-            // Workarounds for JENKINS-21017
-            project.setBuildDiscarder(owner.getTemplate().getBuildDiscarder());
-            project.setCustomWorkspace(owner.getTemplate().getCustomWorkspace());
+                applyTemplateWorkarounds(project, owner.getTemplate());
 
-            if (!wasDisabled) {
-                project.enable();
-            }
+                if (!wasDisabled) {
+                    project.enable();
+                }
 
-            project = super.decorate(project);
+                project = super.decorate(project);
 
-            bc.commit();
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "Unable to update project " + project.getName(), e);
-        } finally {
-            bc.abort();
+                bc.commit();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to update project " + project.getName(), e);
+            } finally {
+                bc.abort();
+                endUpdate();
+            }
         }
 
         return project;
@@ -164,10 +436,11 @@ public abstract class TemplateDrivenBranchProjectFactory<P extends AbstractProje
      *
      * @param project project to update by XML
      * @param source  source of XML
+     * @param inPlace whether to try {@link #reloadInPlace(AbstractProject)} instead of reloading the project
      * @throws IOException if error performing update
      */
     @SuppressWarnings("ThrowFromFinallyBlock")
-    private void updateByXml(final P project, Source source) throws IOException {
+    private void updateByXml(final P project, Source source, boolean inPlace) throws IOException {
         project.checkPermission(Item.CONFIGURE);
         final String projectName = project.getName();
         XmlFile configXmlFile = project.getConfigFile();
@@ -187,15 +460,21 @@ public abstract class TemplateDrivenBranchProjectFactory<P extends AbstractProje
                 // to different job type requires destroying & creating a new job type
                 throw new IOException("Expecting " + project.getClass() + " but got " + o.getClass() + " instead");
             }
+            beforeLoad(project);
 
-            Items.whileUpdatingByXml(new NotReallyRoleSensitiveCallable<Void, IOException>() {
-                @SuppressWarnings("unchecked")
-                @Override
-                public Void call() throws IOException {
-                    project.onLoad(project.getParent(), projectName);
-                    return null;
-                }
-            });
+            if (inPlace && reloadInPlace(project)) {
+                BranchProjectInterner.intern(project);
+            } else {
+                Items.whileUpdatingByXml(new NotReallyRoleSensitiveCallable<Void, IOException>() {
+                    @SuppressWarnings("unchecked")
+                    @Override
+                    public Void call() throws IOException {
+                        project.onLoad(project.getParent(), projectName);
+                        BranchProjectInterner.intern(project);
+                        return null;
+                    }
+                });
+            }
             Jenkins.getActiveInstance().rebuildDependencyGraphAsync();
 
             // if everything went well, commit this new version
@@ -24,6 +24,7 @@
 package com.github.mjdetullio.jenkins.plugins.multibranch;
 
 import hudson.Extension;
+import hudson.Util;
 import hudson.XmlFile;
 import hudson.cli.declarative.CLIMethod;
 import hudson.model.AbstractBuild;
@@ -44,11 +45,14 @@ import hudson.model.listeners.SaveableListener;
 import hudson.scm.NullSCM;
 import hudson.util.AlternativeUiTextProvider;
 import hudson.util.PersistedList;
+import jenkins.branch.Branch;
 import jenkins.branch.MultiBranchProject;
 import jenkins.model.Jenkins;
 import jenkins.scm.api.SCMSourceOwner;
 import org.kohsuke.stapler.HttpRedirect;
 import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 import org.kohsuke.stapler.export.Exported;
@@ -61,11 +65,14 @@ import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * @author Matthew DeTullio
@@ -81,12 +88,58 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
 
     public static final String TEMPLATE = "template";
 
+    private static final String BRANCH_STATUS_FILE = "branch-status.xml";
+
+    private static final String ARCHIVE_DIR = "archive";
+
+    private static final String BUILD_RESULTS_FILE = "build-results.xml";
+
     protected volatile boolean disabled;
 
     private PersistedList<String> disabledSubProjects;
 
+    private boolean archiveDeadBranches;
+
+    private boolean sweepOrphanedDirectories;
+
+    private String priorityBranches;
+
+    private transient volatile List<Pattern> priorityPatterns;
+
+    private int initialBuildsPerMinute;
+
+    private int initialBuildBurst;
+
+    private transient volatile TokenBucket initialBuildBucket;
+
+    private int maxConcurrentBuilds;
+
+    private transient ConcurrentBuildCap.Slots buildSlots;
+
+    private boolean reuseBuildResults;
+
+    private transient BuildResultIndex buildResultIndex;
+
+    private boolean suppressNoOpBuilds;
+
+    private transient NoOpBuildFilter.Revisions headRevisions;
+
+    private int quietPeriodMin;
+
+    private int quietPeriodMax;
+
     protected transient P template; // NOSONAR
 
+    private transient TemplatePropagation propagation;
+
+    private transient TemplatePrototype prototype;
+
+    private transient BranchStatusIndex statusIndex;
+
+    private transient BranchSearchIndex searchIndex;
+
+    private transient BranchArchive archive;
+
     /**
      * Constructor, mandated by {@link TopLevelItem}.
      *
@@ -100,8 +153,22 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
 
     @Override
     public void onLoad(ItemGroup<? extends Item> parent, String name) throws IOException {
+        long start = StartupProfile.start();
         super.onLoad(parent, name);
+        StartupProfile.record(getFullName(), StartupProfile.Phase.LOAD, start);
+
+        start = StartupProfile.start();
         init3();
+        StartupProfile.record(getFullName(), StartupProfile.Phase.INIT, start);
+
+        start = StartupProfile.start();
+        for (P item : getItems()) {
+            BranchProjectInterner.intern(item);
+        }
+        StartupProfile.record(getFullName(), StartupProfile.Phase.INTERN, start);
+        if (archiveDeadBranches) {
+            scheduleDeadBranchArchiving();
+        }
     }
 
     /**
@@ -110,6 +177,40 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
      * is loaded from disk with {@link #onLoad(ItemGroup, String)}.
      */
     protected void init3() {
+        if (propagation == null) {
+            propagation = new TemplatePropagation(this);
+        }
+
+        if (prototype == null) {
+            prototype = new TemplatePrototype(Items.getConfigFile(getTemplateDir()));
+        }
+
+        if (statusIndex == null) {
+            statusIndex = new BranchStatusIndex(new File(getRootDir(), BRANCH_STATUS_FILE));
+            statusIndex.load();
+        }
+
+        if (searchIndex == null) {
+            searchIndex = new BranchSearchIndex();
+        }
+
+        if (buildResultIndex == null) {
+            buildResultIndex = new BuildResultIndex(this, new File(getRootDir(), BUILD_RESULTS_FILE));
+            buildResultIndex.load();
+        }
+
+        if (headRevisions == null) {
+            headRevisions = new NoOpBuildFilter.Revisions();
+        }
+
+        if (buildSlots == null) {
+            buildSlots = new ConcurrentBuildCap.Slots();
+        }
+
+        if (archive == null) {
+            archive = new BranchArchive(this, new File(getRootDir(), ARCHIVE_DIR));
+        }
+
         if (disabledSubProjects == null) {
             disabledSubProjects = new PersistedList<>(this);
         }
@@ -125,9 +226,11 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
                  * which returns the wrong location since template would still be unset.
                  * Instead, read the XML directly into template and then invoke onLoad.
                  */
+                long start = StartupProfile.start();
                 //noinspection unchecked
                 template = (P) templateXmlFile.read();
                 template.onLoad(this, TEMPLATE);
+                StartupProfile.record(getFullName(), StartupProfile.Phase.TEMPLATE, start);
             } else {
                 /*
                  * Don't use the factory here because newInstance calls setBranch, attempting
@@ -162,10 +265,12 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
      */
     @Override
     protected void initViews(List<View> views) throws IOException {
+        long start = StartupProfile.start();
         BranchListView v = new BranchListView("All", this);
         v.setIncludeRegex(".*");
         views.add(v);
         v.save();
+        StartupProfile.record(getFullName(), StartupProfile.Phase.VIEWS, start);
     }
 
     /**
@@ -235,10 +340,30 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
 
         makeDisabled(req.getParameter("disable") != null);
 
+        setArchiveDeadBranches(req.getParameter("archiveDeadBranches") != null);
+        sweepOrphanedDirectories = req.getParameter("sweepOrphanedDirectories") != null;
+
+        setPriorityBranches(req.getParameter("priorityBranches"));
+        setInitialBuildThrottle(parseInt(req.getParameter("initialBuildsPerMinute")),
+                parseInt(req.getParameter("initialBuildBurst")));
+        setMaxConcurrentBuilds(parseInt(req.getParameter("maxConcurrentBuilds")));
+        reuseBuildResults = req.getParameter("reuseBuildResults") != null;
+        suppressNoOpBuilds = req.getParameter("suppressNoOpBuilds") != null;
+        setAdaptiveQuietPeriod(parseInt(req.getParameter("quietPeriodMin")),
+                parseInt(req.getParameter("quietPeriodMax")));
+
+        if (getProjectFactory() instanceof TemplateDrivenBranchProjectFactory) {
+            ((TemplateDrivenBranchProjectFactory<P, B>) getProjectFactory())
+                    .setSeedWorkspaceFrom(req.getParameter("seedWorkspaceFrom"));
+        }
+
         template.doConfigSubmit(
                 new TemplateStaplerRequestWrapper(req),
                 new TemplateStaplerResponseWrapper(req.getStapler(), rsp));
 
+        // Parent and template are persisted at this point, so the branches can be updated in the background
+        getTemplatePropagation().request();
+
         ItemListener.fireOnUpdated(this);
 
         // notify the queue as the project might be now tied to different node
@@ -249,7 +374,406 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
     }
 
     /**
-     * Returns the last build.
+     * Gets the background propagation of the template to the branch projects.  Used by jelly views.
+     *
+     * @return the propagation for this project
+     */
+    @Nonnull
+    public TemplatePropagation getTemplatePropagation() {
+        return propagation;
+    }
+
+    /**
+     * Gets the branch name patterns, one regular expression per line, that {@link BranchQueueSorter} builds first, in
+     * order.  Used by Jelly.
+     *
+     * @return the patterns, or null if none
+     */
+    @CheckForNull
+    public String getPriorityBranches() {
+        return priorityBranches;
+    }
+
+    /**
+     * Sets the branch name patterns that {@link BranchQueueSorter} builds first.  Invalid patterns are ignored.
+     *
+     * @param priorityBranches regular expressions, one per line
+     */
+    public void setPriorityBranches(@CheckForNull String priorityBranches) {
+        this.priorityBranches = Util.fixEmptyAndTrim(priorityBranches);
+        this.priorityPatterns = null;
+    }
+
+    /**
+     * Gets the queue priority of a branch project, lower being more important.
+     *
+     * @param name the branch project name
+     * @return the index of the first priority pattern matching the name, or {@link Integer#MAX_VALUE} if none does
+     */
+    int getBranchPriority(@Nonnull String name) {
+        List<Pattern> patterns = priorityPatterns;
+        if (patterns == null) {
+            patterns = new ArrayList<>();
+            if (priorityBranches != null) {
+                for (String line : priorityBranches.split("\\r?\\n")) {
+                    if (!line.trim().isEmpty()) {
+                        try {
+                            patterns.add(Pattern.compile(line.trim()));
+                        } catch (PatternSyntaxException e) {
+                            LOGGER.log(Level.WARNING, "Ignoring invalid priority branch pattern " + line, e);
+                        }
+                    }
+                }
+            }
+            priorityPatterns = patterns;
+        }
+
+        for (int i = 0; i < patterns.size(); i++) {
+            if (patterns.get(i).matcher(name).matches()) {
+                return i;
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Gets how many first builds of new branch projects {@link InitialBuildThrottle} lets start per minute.  Used by
+     * Jelly.
+     *
+     * @return builds per minute, or 0 if not throttled
+     */
+    public int getInitialBuildsPerMinute() {
+        return initialBuildsPerMinute;
+    }
+
+    /**
+     * Gets how many first builds of new branch projects {@link InitialBuildThrottle} lets start at once.  Used by
+     * Jelly.
+     *
+     * @return maximum burst of builds
+     */
+    public int getInitialBuildBurst() {
+        return initialBuildBurst;
+    }
+
+    /**
+     * Configures the throttling of first builds of new branch projects.
+     *
+     * @param perMinute builds let through per minute, or 0 to not throttle
+     * @param burst     builds let through at once; defaults to {@code perMinute} when not positive
+     */
+    public void setInitialBuildThrottle(int perMinute, int burst) {
+        this.initialBuildsPerMinute = Math.max(0, perMinute);
+        this.initialBuildBurst = burst > 0 ? burst : initialBuildsPerMinute;
+        this.initialBuildBucket = null;
+    }
+
+    /**
+     * Gets the token bucket throttling first builds of new branch projects.
+     *
+     * @return the bucket, or null if first builds are not throttled
+     */
+    @CheckForNull
+    TokenBucket getInitialBuildBucket() {
+        if (initialBuildsPerMinute <= 0) {
+            return null;
+        }
+
+        TokenBucket bucket = initialBuildBucket;
+        if (bucket == null) {
+            bucket = new TokenBucket(initialBuildsPerMinute, initialBuildBurst, System.nanoTime());
+            initialBuildBucket = bucket;
+        }
+        return bucket;
+    }
+
+    private static int parseInt(String value) {
+        try {
+            return Integer.parseInt(Util.fixEmptyAndTrim(value) == null ? "0" : value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Gets how many builds of branch projects {@link ConcurrentBuildCap} lets run at once.  Used by Jelly.
+     *
+     * @return maximum concurrent builds, or 0 if unlimited
+     */
+    public int getMaxConcurrentBuilds() {
+        return maxConcurrentBuilds;
+    }
+
+    /**
+     * Sets how many builds of branch projects {@link ConcurrentBuildCap} lets run at once.
+     *
+     * @param maxConcurrentBuilds maximum concurrent builds, or 0 if unlimited
+     */
+    public void setMaxConcurrentBuilds(int maxConcurrentBuilds) {
+        this.maxConcurrentBuilds = Math.max(0, maxConcurrentBuilds);
+    }
+
+    /**
+     * Gets the build slots counting running builds for {@link ConcurrentBuildCap}.
+     *
+     * @return the build slots
+     */
+    @Nonnull
+    ConcurrentBuildCap.Slots getBuildSlots() {
+        return buildSlots;
+    }
+
+    /**
+     * Gets whether branch projects reuse the result of a successful build of the same commit and template by any
+     * branch of the same source instead of building.  Used by Jelly.
+     *
+     * @return true if build results are reused
+     */
+    public boolean isReuseBuildResults() {
+        return reuseBuildResults;
+    }
+
+    /**
+     * Sets whether branch projects reuse the result of a successful build of the same commit and template by any
+     * branch of the same source instead of building.
+     *
+     * @param reuseBuildResults true to reuse build results
+     */
+    public void setReuseBuildResults(boolean reuseBuildResults) {
+        this.reuseBuildResults = reuseBuildResults;
+    }
+
+    /**
+     * Gets the index of successful builds by revision, used to reuse build results.
+     *
+     * @return the build result index for this project
+     */
+    @Nonnull
+    BuildResultIndex getBuildResultIndex() {
+        return buildResultIndex;
+    }
+
+    /**
+     * Gets whether timer-triggered builds of branch projects whose head was already built are dropped.  Used by Jelly.
+     *
+     * @return true if no-op builds are suppressed
+     */
+    public boolean isSuppressNoOpBuilds() {
+        return suppressNoOpBuilds;
+    }
+
+    /**
+     * Gets the head and built revisions of the branch projects, used by {@link NoOpBuildFilter}.
+     *
+     * @return the revisions
+     */
+    @Nonnull
+    NoOpBuildFilter.Revisions getHeadRevisions() {
+        return headRevisions;
+    }
+
+    /**
+     * Gets whether the quiet period of each branch project adapts to how often the branch is pushed to.
+     *
+     * @return true if an upper bound is set
+     */
+    public boolean isAdaptiveQuietPeriod() {
+        return quietPeriodMax > 0;
+    }
+
+    /**
+     * Gets the shortest adaptive quiet period, used for isolated pushes.  Used by Jelly.
+     *
+     * @return seconds
+     */
+    public int getQuietPeriodMin() {
+        return quietPeriodMin;
+    }
+
+    /**
+     * Gets the longest adaptive quiet period.  Used by Jelly.
+     *
+     * @return seconds, or 0 if the template's quiet period applies to every branch
+     */
+    public int getQuietPeriodMax() {
+        return quietPeriodMax;
+    }
+
+    /**
+     * Sets the bounds of the adaptive quiet period.
+     *
+     * @param min the shortest quiet period in seconds
+     * @param max the longest quiet period in seconds, or 0 to use the template's quiet period
+     */
+    public void setAdaptiveQuietPeriod(int min, int max) {
+        this.quietPeriodMax = Math.max(0, max);
+        this.quietPeriodMin = Math.max(0, Math.min(min, quietPeriodMax));
+    }
+
+    /**
+     * Gets whether dead branch projects are packed into the {@link BranchArchive} and removed.  Used by Jelly.
+     *
+     * @return true if dead branches are archived
+     */
+    public boolean isArchiveDeadBranches() {
+        return archiveDeadBranches;
+    }
+
+    /**
+     * Sets whether dead branch projects are packed into the {@link BranchArchive} and removed.  Turning archiving on
+     * queues the branch projects that are already dead.
+     *
+     * @param archiveDeadBranches true to archive dead branches
+     */
+    public void setArchiveDeadBranches(boolean archiveDeadBranches) {
+        boolean enabling = archiveDeadBranches && !this.archiveDeadBranches;
+        this.archiveDeadBranches = archiveDeadBranches;
+        if (enabling) {
+            scheduleDeadBranchArchiving();
+        }
+    }
+
+    /**
+     * Gets whether leftover directories in the branches directory are removed by the {@link OrphanedDirectorySweeper}.
+     * Used by Jelly.
+     *
+     * @return true if orphaned directories are swept
+     */
+    public boolean isSweepOrphanedDirectories() {
+        return sweepOrphanedDirectories;
+    }
+
+    /**
+     * Sets whether leftover directories in the branches directory are removed by the {@link OrphanedDirectorySweeper}.
+     *
+     * @param sweepOrphanedDirectories true to sweep orphaned directories
+     */
+    public void setSweepOrphanedDirectories(boolean sweepOrphanedDirectories) {
+        this.sweepOrphanedDirectories = sweepOrphanedDirectories;
+    }
+
+    /**
+     * Gets the archive of dead branch projects.  Used by Jelly.
+     *
+     * @return the branch archive for this project
+     */
+    @Nonnull
+    public BranchArchive getBranchArchive() {
+        return archive;
+    }
+
+    /**
+     * Queues every dead branch project to be archived.
+     */
+    private void scheduleDeadBranchArchiving() {
+        for (P project : getItems()) {
+            if (getProjectFactory().getBranch(project) instanceof Branch.Dead) {
+                archive.schedule(project.getName());
+            }
+        }
+    }
+
+    /**
+     * Unpacks an archived branch project and adds it back to this project, as a dead branch that is
+     * {@link BranchProjectProperty#isKept() kept} out of the archive until its branch comes back.
+     *
+     * @param name the branch project name
+     * @return a redirect to the restored branch project
+     * @throws IOException          if the archive cannot be read or the project cannot be loaded
+     * @throws InterruptedException if interrupted while unpacking
+     */
+    @SuppressWarnings(UNUSED)
+    @RequirePOST
+    public HttpResponse doRestoreArchivedBranch(@QueryParameter String name)
+            throws IOException, InterruptedException {
+        checkPermission(Item.CREATE);
+
+        P existing = getItem(name);
+        if (existing != null) {
+            return HttpResponses.redirectTo(existing.getAbsoluteUrl());
+        }
+
+        Item item = archive.load(name);
+        if (item == null || !getProjectFactory().isProject(item)) {
+            return HttpResponses.redirectTo("archivedBranches");
+        }
+
+        //noinspection unchecked
+        P project = (P) item;
+        BranchProjectProperty<?, ?> property = project.getProperty(BranchProjectProperty.class);
+        if (property != null) {
+            property.setKept(true);
+            project.save();
+        }
+        itemsPut(project.getName(), project);
+        ItemListener.fireOnCreated(project);
+        return HttpResponses.redirectTo(project.getAbsoluteUrl());
+    }
+
+    /**
+     * Gets the parsed template configuration used to populate new branch projects.
+     *
+     * @return the template prototype for this project
+     */
+    @Nonnull
+    TemplatePrototype getTemplatePrototype() {
+        return prototype;
+    }
+
+    /**
+     * Gets the compact status summary of the branch projects, used to render large branch lists.
+     *
+     * @return the status index for this project
+     */
+    @Nonnull
+    public BranchStatusIndex getStatusIndex() {
+        return statusIndex;
+    }
+
+    /**
+     * Gets the search index over the names and display names of the branch projects, filling it on first use.
+     *
+     * @return the search index for this project
+     */
+    @Nonnull
+    public BranchSearchIndex getSearchIndex() {
+        return getSearchIndex(true);
+    }
+
+    /**
+     * Gets the search index over the names and display names of the branch projects.
+     *
+     * @param populate whether to fill the index if it has not been filled yet
+     * @return the search index for this project
+     */
+    @Nonnull
+    BranchSearchIndex getSearchIndex(boolean populate) {
+        if (populate && !searchIndex.isPopulated()) {
+            searchIndex.populate(getItems());
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Applies the current {@link #template} to every branch project by way of
+     * {@link jenkins.branch.BranchProjectFactory#decorate(Job)}.  Invoked from {@link TemplatePropagation}, which
+     * makes sure only one propagation runs at a time for this project.
+     *
+     * @param progress receives the progress of the propagation
+     */
+    void propagateTemplate(@Nonnull TemplatePropagation progress) {
+        List<P> projects = new ArrayList<>(getItems());
+        progress.started(projects.size());
+
+        for (P project : projects) {
+            getProjectFactory().decorate(project);
+            progress.advanced();
+        }
+    }
+
+    /**
+     * Returns the last build.  The branch project is picked with the {@link BranchStatusIndex}, so only the one
+     * build returned is loaded.
      *
      * @return the build or null
      */
@@ -257,11 +781,16 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
     @CheckForNull
     @Exported
     public Run getLastBuild() {
-        Run retVal = null;
-        for (Job job : getAllJobs()) {
-            retVal = takeLast(retVal, job.getLastBuild());
+        Job<?, ?> last = null;
+        long lastTime = 0L;
+        for (Job<?, ?> job : getAllJobs()) {
+            BranchStatusIndex.Entry entry = statusIndex.get(job);
+            if (entry.getLastBuildNumber() > 0 && (last == null || entry.getLastBuildTime() > lastTime)) {
+                last = job;
+                lastTime = entry.getLastBuildTime();
+            }
         }
-        return retVal;
+        return last == null ? null : last.getLastBuild();
     }
 
     /**
@@ -588,6 +1117,16 @@ public abstract class TemplateDrivenMultiBranchProject<P extends AbstractProject
         public void onChange(Saveable o, XmlFile file) {
             if (o instanceof Item) {
                 enforceProjectStateOnUpdated((Item) o);
+
+                // Template saves invalidate the prototype new branch projects are created from
+                Item item = (Item) o;
+                if (item.getParent() instanceof TemplateDrivenMultiBranchProject) {
+                    TemplateDrivenMultiBranchProject<?, ?> parent =
+                            (TemplateDrivenMultiBranchProject<?, ?>) item.getParent();
+                    if (item.equals(parent.getTemplate())) {
+                        parent.getTemplatePrototype().invalidate();
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,173 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.security.ACL;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.SequentialExecutionQueue;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies the template of a {@link TemplateDrivenMultiBranchProject} to its existing branch projects in the
+ * background, so that configuration submissions return as soon as the parent and template are persisted.
+ * <br>
+ * There is one instance per project, which is submitted to a {@link SequentialExecutionQueue}.  Requests made while
+ * a propagation is already queued are coalesced into that propagation, and requests made while one is running cause
+ * exactly one more run, which reads the newest template.
+ * <br>
+ * A propagation is the only path by which a template change reaches existing branch projects.  While one is pending,
+ * decorating a branch project from anywhere else, such as branch indexing, restores the branch settings but leaves
+ * reloading the template to the propagation, so the two never reload the same project at the same time.
+ *
+ * @author Matthew DeTullio
+ */
+public final class TemplatePropagation implements Runnable {
+
+    private static final String CLASSNAME = TemplatePropagation.class.getName();
+    private static final Logger LOGGER = Logger.getLogger(CLASSNAME);
+
+    private static final SequentialExecutionQueue QUEUE = new SequentialExecutionQueue(
+            Executors.newCachedThreadPool(new NamingThreadFactory(new DaemonThreadFactory(), CLASSNAME)));
+
+    private final TemplateDrivenMultiBranchProject<?, ?> project;
+
+    private final AtomicLong requested = new AtomicLong();
+
+    private volatile long completed;
+
+    private volatile boolean running;
+
+    private volatile Thread runner;
+
+    private volatile int total;
+
+    private volatile int done;
+
+    /**
+     * Creates the propagation for a project.
+     *
+     * @param project the project whose template is propagated
+     */
+    TemplatePropagation(TemplateDrivenMultiBranchProject<?, ?> project) {
+        this.project = project;
+    }
+
+    /**
+     * Requests that the current template be applied to all branch projects.  Returns immediately.
+     */
+    public void request() {
+        requested.incrementAndGet();
+        QUEUE.execute(this);
+    }
+
+    /**
+     * Gets whether a requested propagation has not finished yet.  Used by Jelly.
+     *
+     * @return true if there are branch projects that may not reflect the newest template
+     */
+    public boolean isPending() {
+        return completed < requested.get();
+    }
+
+    /**
+     * Gets whether decorating a branch project on the current thread should leave the template to this propagation.
+     *
+     * @return true if a propagation is pending and the current thread is not running it
+     */
+    boolean isDeferring() {
+        return isPending() && Thread.currentThread() != runner;
+    }
+
+    /**
+     * Gets whether a propagation is currently applying the template.  Used by Jelly.
+     *
+     * @return true if running, false if only queued or idle
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Gets the number of branch projects in the current (or last) propagation.  Used by Jelly.
+     *
+     * @return number of branch projects
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the number of branch projects the template has been applied to in the current (or last) propagation.
+     * Used by Jelly.
+     *
+     * @return number of branch projects already updated
+     */
+    public int getDone() {
+        return done;
+    }
+
+    /**
+     * Called by the project before it starts applying the template.
+     *
+     * @param total number of branch projects that will be updated
+     */
+    void started(int total) {
+        this.total = total;
+        this.done = 0;
+    }
+
+    /**
+     * Called by the project after each branch project has been updated.
+     */
+    void advanced() {
+        done++;
+    }
+
+    @Override
+    public void run() {
+        // Everything requested up to now is satisfied by this run, since it reads the newest template
+        long revision = requested.get();
+        runner = Thread.currentThread();
+        running = true;
+
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            project.propagateTemplate(this);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to propagate template of " + project.getFullName(), e);
+        } finally {
+            SecurityContextHolder.setContext(orig);
+            completed = revision;
+            running = false;
+            runner = null;
+        }
+    }
+}
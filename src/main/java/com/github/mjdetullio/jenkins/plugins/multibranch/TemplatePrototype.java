@@ -0,0 +1,150 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import com.thoughtworks.xstream.io.xml.XppDomReader;
+import com.thoughtworks.xstream.io.xml.xppdom.XppDom;
+import com.thoughtworks.xstream.io.xml.xppdom.XppFactory;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Items;
+import org.xmlpull.v1.XmlPullParserException;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * The configuration of a template, parsed once per template revision, from which new branch projects are populated
+ * without parsing the template's config.xml again.
+ * <br>
+ * The revision is the MD5 digest of the configuration.  A prototype is recompiled when the template is saved, or when
+ * its config.xml changes size or modification time, and kept if the content turns out to be the same.
+ *
+ * @author Matthew DeTullio
+ */
+final class TemplatePrototype {
+
+    private final XmlFile configFile;
+
+    private volatile Compiled compiled;
+
+    /**
+     * Creates the prototype of a template.
+     *
+     * @param configFile the template's configuration file
+     */
+    TemplatePrototype(@Nonnull XmlFile configFile) {
+        this.configFile = configFile;
+    }
+
+    /**
+     * Gets the prototype for the current template configuration, compiling it if the template changed.
+     *
+     * @return the compiled prototype
+     * @throws IOException if the template configuration cannot be read or parsed
+     */
+    @Nonnull
+    Compiled get() throws IOException {
+        File file = configFile.getFile();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        Compiled c = compiled;
+        if (c != null && c.lastModified == lastModified && c.length == length) {
+            return c;
+        }
+
+        String xml = configFile.readRaw();
+        String revision = Util.getDigestOf(xml);
+        if (c != null && c.revision.equals(revision)) {
+            c = new Compiled(revision, c.dom, lastModified, length);
+        } else {
+            try {
+                c = new Compiled(revision, XppFactory.buildDom(new StringReader(xml)), lastModified, length);
+            } catch (XmlPullParserException e) {
+                throw new IOException("Unable to parse " + configFile, e);
+            }
+        }
+        compiled = c;
+        return c;
+    }
+
+    /**
+     * Gets the revision of the prototype compiled last, without checking whether the template changed since.  Never
+     * touches the file system, so it is safe to call while holding the queue lock.
+     *
+     * @return the revision, or null if no prototype is compiled, for example right after the template was saved
+     */
+    @CheckForNull
+    String peekRevision() {
+        Compiled c = compiled;
+        return c == null ? null : c.revision;
+    }
+
+    /**
+     * Forgets the compiled prototype so the next use reads the template again.
+     */
+    void invalidate() {
+        compiled = null;
+    }
+
+    /**
+     * One revision of the template configuration.  Immutable; the parsed tree is only ever read.
+     */
+    static final class Compiled {
+        private final String revision;
+        private final XppDom dom;
+        private final long lastModified;
+        private final long length;
+
+        private Compiled(String revision, XppDom dom, long lastModified, long length) {
+            this.revision = revision;
+            this.dom = dom;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        /**
+         * Gets the MD5 digest of the template configuration.
+         *
+         * @return the revision
+         */
+        @Nonnull
+        String getRevision() {
+            return revision;
+        }
+
+        /**
+         * Populates a new project with the template configuration.
+         *
+         * @param project the project, not yet loaded
+         */
+        void applyTo(@Nonnull Object project) {
+            Items.XSTREAM.unmarshal(new XppDomReader(dom), project);
+        }
+    }
+}
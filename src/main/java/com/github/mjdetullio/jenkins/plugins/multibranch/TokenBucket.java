@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket releasing up to {@code burst} permits at once and refilling at {@code perMinute} permits per minute.
+ *
+ * @author Matthew DeTullio
+ */
+final class TokenBucket {
+
+    private static final long NANOS_PER_MINUTE = TimeUnit.MINUTES.toNanos(1);
+
+    private final int perMinute;
+
+    private final int burst;
+
+    /**
+     * Available permits, in units of 1/{@link #NANOS_PER_MINUTE} permit so refills are exact.
+     */
+    private long credit;
+
+    private long last;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param perMinute permits added per minute, at least 1
+     * @param burst     maximum permits available at once, at least 1
+     * @param now       the current {@link System#nanoTime()}
+     */
+    TokenBucket(int perMinute, int burst, long now) {
+        this.perMinute = Math.max(1, perMinute);
+        this.burst = Math.max(1, burst);
+        this.credit = this.burst * NANOS_PER_MINUTE;
+        this.last = now;
+    }
+
+    int getPerMinute() {
+        return perMinute;
+    }
+
+    int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Takes a permit if one is available.
+     *
+     * @return true if a permit was taken
+     */
+    boolean tryAcquire() {
+        return tryAcquire(System.nanoTime());
+    }
+
+    /**
+     * Takes a permit if one is available at the given time.
+     *
+     * @param now the current {@link System#nanoTime()}
+     * @return true if a permit was taken
+     */
+    synchronized boolean tryAcquire(long now) {
+        long elapsed = Math.max(0L, now - last);
+        last = now;
+
+        long max = burst * NANOS_PER_MINUTE;
+        // elapsed * perMinute could overflow after a long idle time, in which case the bucket is full anyway
+        credit = elapsed > max / perMinute ? max : Math.min(max, credit + elapsed * perMinute);
+
+        if (credit >= NANOS_PER_MINUTE) {
+            credit -= NANOS_PER_MINUTE;
+            return true;
+        }
+        return false;
+    }
+}
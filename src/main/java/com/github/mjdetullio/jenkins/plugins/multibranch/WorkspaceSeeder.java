@@ -0,0 +1,209 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TopLevelItem;
+import hudson.model.WorkspaceListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.WorkspaceList;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Seeds the empty workspace of a new branch project from the workspace of the branch configured with
+ * {@link TemplateDrivenBranchProjectFactory#getSeedWorkspaceFrom()} on the same node, before the SCM checks out, so
+ * that the first build of a new branch only has to fetch and apply the difference.  Only the first build of a branch
+ * project is seeded, so a workspace wiped out later stays clean.  The seed workspace is leased while it is copied, and
+ * it is not copied while a build of the seed branch uses it.
+ * <br>
+ * The copy is made on the node, with a copy-on-write clone ({@code cp --reflink=always}) where the file system supports
+ * it.  Otherwise files are copied, except Git object files, which are immutable and are hard linked when possible.
+ *
+ * @author Matthew DeTullio
+ */
+@Extension
+public class WorkspaceSeeder extends WorkspaceListener {
+
+    @Override
+    public void beforeUse(AbstractBuild b, FilePath workspace, BuildListener listener) {
+        AbstractProject<?, ?> project = b.getProject();
+        if (!(project.getParent() instanceof TemplateDrivenMultiBranchProject)) {
+            return;
+        }
+
+        TemplateDrivenMultiBranchProject<?, ?> parent = (TemplateDrivenMultiBranchProject<?, ?>) project.getParent();
+        if (!(parent.getProjectFactory() instanceof TemplateDrivenBranchProjectFactory)) {
+            return;
+        }
+
+        TemplateDrivenBranchProjectFactory<?, ?> factory =
+                (TemplateDrivenBranchProjectFactory<?, ?>) parent.getProjectFactory();
+        String seedName = factory.getSeedWorkspaceFrom();
+        if (seedName == null || seedName.equals(project.getName())) {
+            return;
+        }
+
+        TopLevelItem seed = parent.getItem(seedName);
+        Node node = b.getBuiltOn();
+        Computer computer = node == null ? null : node.toComputer();
+        if (!(seed instanceof AbstractProject) || computer == null || b.getPreviousBuild() != null) {
+            return;
+        }
+
+        try {
+            if (workspace.exists() && !workspace.list().isEmpty()) {
+                return;
+            }
+
+            FilePath source = node.getWorkspaceFor(seed);
+            if (source == null) {
+                return;
+            }
+
+            // Holding the seed's workspace keeps its builds out of it while it is copied
+            WorkspaceList.Lease lease = computer.getWorkspaceList().allocate(source);
+            try {
+                if (!lease.path.equals(source) || !source.isDirectory()) {
+                    return;
+                }
+
+                long start = System.currentTimeMillis();
+                String method = source.act(new Seed(workspace.getRemote()));
+                listener.getLogger().printf("Seeded workspace from %s (%s) in %d ms%n", seed.getFullDisplayName(),
+                        method, System.currentTimeMillis() - start);
+            } finally {
+                lease.release();
+            }
+        } catch (IOException e) {
+            listener.getLogger().println("Unable to seed workspace from " + seedName + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies the directory it is invoked on to the target directory on the same node.
+     */
+    private static final class Seed extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String target;
+
+        Seed(String target) {
+            this.target = target;
+        }
+
+        @Override
+        public String invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            Path source = f.toPath();
+            Path dest = new File(target).toPath();
+            Files.createDirectories(dest);
+
+            if (cloneCopyOnWrite(source, dest)) {
+                return "copy-on-write";
+            }
+
+            final Path from = source;
+            final Path to = dest;
+            Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    try {
+                        Files.createDirectory(to.resolve(from.relativize(dir)));
+                    } catch (FileAlreadyExistsException e) {
+                        // The target workspace itself, or left over by a failed clone
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path copy = to.resolve(from.relativize(file));
+                    Files.deleteIfExists(copy);
+                    if (attrs.isSymbolicLink()) {
+                        Files.createSymbolicLink(copy, Files.readSymbolicLink(file));
+                    } else if (!isGitObject(file) || !link(copy, file)) {
+                        Files.copy(file, copy, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return "copy";
+        }
+
+        /**
+         * Tries to clone the tree with copy-on-write, which only Unix {@code cp} exposes.
+         */
+        private static boolean cloneCopyOnWrite(Path source, Path dest) throws InterruptedException {
+            if (File.pathSeparatorChar != ':') {
+                return false;
+            }
+
+            try {
+                Process p = new ProcessBuilder("cp", "-a", "--reflink=always", source + "/.", dest.toString())
+                        .redirectErrorStream(true)
+                        .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                        .start();
+                p.getOutputStream().close();
+                return p.waitFor() == 0;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        private static boolean isGitObject(Path file) {
+            Path parent = file.getParent();
+            Path grandParent = parent == null ? null : parent.getParent();
+            return grandParent != null && "objects".equals(String.valueOf(grandParent.getFileName()))
+                    && grandParent.getParent() != null
+                    && ".git".equals(String.valueOf(grandParent.getParent().getFileName()));
+        }
+
+        private static boolean link(Path link, Path existing) {
+            try {
+                Files.createLink(link, existing);
+                return true;
+            } catch (IOException | UnsupportedOperationException e) {
+                return false;
+            }
+        }
+    }
+}
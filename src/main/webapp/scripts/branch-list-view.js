@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/*
+ * Paged mode of BranchListView: loads rows from the view's "rows" URL as the user scrolls, and re-queries the
+ * server whenever the sort column or the filter changes.
+ */
+(function () {
+    var container = $('branch-list');
+    if (!container) {
+        return;
+    }
+
+    var rowsUrl = container.getAttribute('data-rows-url');
+    var rootUrl = container.getAttribute('data-root-url');
+    var pageSize = parseInt(container.getAttribute('data-page-size'), 10);
+    var tbody = container.down('tbody');
+    var status = container.down('.branch-list-status');
+    var filterBox = container.down('.branch-list-filter');
+
+    var state = {sort: 'name', desc: false, filter: '', loaded: 0, total: -1, loading: false, generation: 0};
+
+    function cell(tr, content) {
+        var td = document.createElement('td');
+        if (typeof content === 'string') {
+            td.appendChild(document.createTextNode(content));
+        } else {
+            td.appendChild(content);
+        }
+        tr.appendChild(td);
+    }
+
+    function render(row) {
+        var tr = document.createElement('tr');
+
+        var icon = document.createElement('img');
+        icon.src = row.icon;
+        icon.alt = row.status;
+        icon.title = row.status;
+        cell(tr, icon);
+
+        var link = document.createElement('a');
+        link.href = rootUrl + row.url;
+        link.className = 'model-link inside';
+        link.appendChild(document.createTextNode(row.displayName));
+        cell(tr, link);
+
+        cell(tr, row.lastBuild > 0 ? row.lastBuildTime + ' (#' + row.lastBuild + ')' : '');
+        cell(tr, row.duration);
+
+        tbody.appendChild(tr);
+    }
+
+    function loadMore() {
+        if (state.loading || (state.total >= 0 && state.loaded >= state.total)) {
+            return;
+        }
+        state.loading = true;
+        var generation = state.generation;
+
+        new Ajax.Request(rowsUrl, {
+            method: 'get',
+            parameters: {
+                start: state.loaded,
+                count: pageSize,
+                sort: state.sort,
+                desc: state.desc,
+                filter: state.filter
+            },
+            onSuccess: function (rsp) {
+                if (generation !== state.generation) {
+                    return;
+                }
+                var data = rsp.responseText.evalJSON();
+                data.rows.each(render);
+                state.loaded += data.rows.length;
+                state.total = data.total;
+                status.update(state.loaded + ' / ' + state.total);
+            },
+            onComplete: function () {
+                if (generation === state.generation) {
+                    state.loading = false;
+                    fill();
+                }
+            }
+        });
+    }
+
+    // Keep loading while the bottom of the table is visible
+    function fill() {
+        var viewportBottom = document.viewport.getScrollOffsets().top + document.viewport.getHeight();
+        if (container.cumulativeOffset().top + container.getHeight() < viewportBottom + 200) {
+            loadMore();
+        }
+    }
+
+    function reset() {
+        state.generation++;
+        state.loaded = 0;
+        state.total = -1;
+        state.loading = false;
+        tbody.update('');
+        loadMore();
+    }
+
+    container.select('.branch-list-sort').each(function (th) {
+        th.style.cursor = 'pointer';
+        th.observe('click', function () {
+            var sort = th.getAttribute('data-sort');
+            state.desc = state.sort === sort ? !state.desc : false;
+            state.sort = sort;
+            reset();
+        });
+    });
+
+    var filterTimer = null;
+    filterBox.observe('keyup', function () {
+        if (filterTimer) {
+            window.clearTimeout(filterTimer);
+        }
+        filterTimer = window.setTimeout(function () {
+            if (state.filter !== filterBox.value) {
+                state.filter = filterBox.value;
+                reset();
+            }
+        }, 250);
+    });
+
+    Event.observe(window, 'scroll', fill);
+    reset();
+})();
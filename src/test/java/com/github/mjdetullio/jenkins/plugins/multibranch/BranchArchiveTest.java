@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.TopLevelItem;
+import java.io.File;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultOrphanedItemStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class BranchArchiveTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void given_deadBranch_when_archiving_then_projectIsPackedAndRemoved() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+            prj.setArchiveDeadBranches(true);
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject feature = prj.getItem("feature");
+            assertThat(feature, notNullValue());
+            File rootDir = feature.getRootDir();
+
+            c.deleteBranch("foo", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            assertThat(prj.getProjectFactory().getBranch(feature), instanceOf(Branch.Dead.class));
+
+            prj.getBranchArchive().archive("feature");
+
+            assertThat(prj.getItem("feature"), nullValue());
+            assertThat(prj.getBranchArchive().contains("feature"), is(true));
+            assertThat(prj.getBranchArchive().getEntries(), hasSize(1));
+            assertThat(prj.getBranchArchive().getEntries().get(0).getLastBuildNumber(), is(1));
+            assertThat("The project directory was moved away", rootDir.exists(), is(false));
+            assertThat("Live branches are left alone", prj.getItem("master"), notNullValue());
+        }
+    }
+
+    @Test
+    public void given_liveBranch_when_archiving_then_projectIsKept() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+            prj.setArchiveDeadBranches(true);
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            prj.getBranchArchive().archive("feature");
+
+            assertThat(prj.getItem("feature"), notNullValue());
+            assertThat(prj.getBranchArchive().contains("feature"), is(false));
+        }
+    }
+
+    @Test
+    public void given_archivedBranch_when_branchReappears_then_projectIsRestoredWithItsBuilds() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+            prj.setArchiveDeadBranches(true);
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            c.deleteBranch("foo", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            prj.getBranchArchive().archive("feature");
+            assertThat(prj.getItem("feature"), nullValue());
+
+            c.cloneBranch("foo", "master", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            FreeStyleProject feature = prj.getItem("feature");
+            assertThat(feature, notNullValue());
+            assertThat(prj.getProjectFactory().getBranch(feature), not(instanceOf(Branch.Dead.class)));
+            assertThat("The build from before archiving is back", feature.getBuildByNumber(1), notNullValue());
+            assertThat(prj.getBranchArchive().contains("feature"), is(false));
+        }
+    }
+
+    @Test
+    public void given_archivedBranchWithEncodedName_when_branchReappears_then_projectIsRestoredIntoItsDirectory()
+            throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature/foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+            prj.setArchiveDeadBranches(true);
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject feature = branchProject(prj, "feature/foo");
+            String name = feature.getName();
+            File rootDir = feature.getRootDir();
+            c.deleteBranch("foo", "feature/foo");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            prj.getBranchArchive().archive(name);
+            assertThat(prj.getItem(name), nullValue());
+
+            c.cloneBranch("foo", "master", "feature/foo");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            FreeStyleProject restored = prj.getItem(name);
+            assertThat(restored, notNullValue());
+            assertThat(restored.getRootDir(), is(rootDir));
+            assertThat("The build from before archiving is back", restored.getBuildByNumber(1), notNullValue());
+            assertThat("Nothing was unpacked next to the project", new File(prj.getJobsDir(), name).exists(),
+                    is(name.equals(rootDir.getName())));
+        }
+    }
+
+    @Test
+    public void given_deadBranchRestoredByHand_when_archiving_then_projectIsKept() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+            prj.setArchiveDeadBranches(true);
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            c.deleteBranch("foo", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            prj.getBranchArchive().archive("feature");
+
+            prj.doRestoreArchivedBranch("feature");
+            FreeStyleProject feature = prj.getItem("feature");
+            assertThat(feature, notNullValue());
+            assertThat(prj.getProjectFactory().getBranch(feature), instanceOf(Branch.Dead.class));
+
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            prj.getBranchArchive().archive("feature");
+
+            assertThat("A branch restored by hand stays", prj.getItem("feature"), notNullValue());
+            assertThat(prj.getBranchArchive().contains("feature"), is(false));
+        }
+    }
+
+    @Test
+    public void given_keptBranch_when_itComesBackAndDiesAgain_then_projectIsArchived() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+            prj.setArchiveDeadBranches(true);
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            c.deleteBranch("foo", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            prj.getBranchArchive().archive("feature");
+            prj.doRestoreArchivedBranch("feature");
+
+            c.cloneBranch("foo", "master", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            c.deleteBranch("foo", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            prj.getBranchArchive().archive("feature");
+
+            assertThat(prj.getItem("feature"), nullValue());
+            assertThat(prj.getBranchArchive().contains("feature"), is(true));
+        }
+    }
+
+    private static FreeStyleProject branchProject(FreeStyleMultiBranchProject prj, String branch) {
+        for (FreeStyleProject p : prj.getItems()) {
+            if (branch.equals(prj.getProjectFactory().getBranch(p).getName())) {
+                return p;
+            }
+        }
+        throw new AssertionError("No project for " + branch);
+    }
+}
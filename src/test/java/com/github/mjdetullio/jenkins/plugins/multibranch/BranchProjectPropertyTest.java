@@ -0,0 +1,167 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.Items;
+import hudson.model.TopLevelItem;
+import hudson.scm.NullSCM;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchSource;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class BranchProjectPropertyTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void given_branchProject_when_saving_then_onlySourceIdAndHeadArePersisted() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject master = prj.getItem("master");
+            assertThat(master, notNullValue());
+
+            String xml = Items.XSTREAM2.toXML(master.getProperty(BranchProjectProperty.class));
+
+            assertThat(xml, containsString("<sourceId>"));
+            assertThat(xml, containsString("<head"));
+            assertThat(xml, not(containsString("<branch")));
+        }
+    }
+
+    @Test
+    public void given_legacyBranchFormat_when_loading_then_branchIsKeptAndConvertedOnSave() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject master = prj.getItem("master");
+            assertThat(master, notNullValue());
+            Branch branch = master.getProperty(BranchProjectProperty.class).getBranch();
+
+            String branchXml = Items.XSTREAM2.toXML(branch);
+            String legacy = "<" + BranchProjectProperty.class.getName() + "><branch>"
+                    + branchXml.substring(branchXml.indexOf('>') + 1, branchXml.lastIndexOf('<'))
+                    + "</branch></" + BranchProjectProperty.class.getName() + ">";
+
+            BranchProjectProperty<?, ?> loaded = (BranchProjectProperty<?, ?>) Items.XSTREAM2.fromXML(legacy);
+
+            assertThat(loaded.getBranch().getSourceId(), is(branch.getSourceId()));
+            assertThat(loaded.getBranch().getHead().getName(), is("master"));
+            assertThat(loaded.getBranch(), not(instanceOf(Branch.Dead.class)));
+            assertThat("The legacy format is converted on the next save",
+                    Items.XSTREAM2.toXML(loaded), not(containsString("<branch")));
+        }
+    }
+
+    @Test
+    public void given_compactFormat_when_writingAndReading_then_branchStateIsKept() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject master = prj.getItem("master");
+            BranchProjectProperty<?, ?> property = master.getProperty(BranchProjectProperty.class);
+            assertThat(property.getTemplateRevision(), notNullValue());
+
+            BranchProjectProperty<?, ?> loaded =
+                    (BranchProjectProperty<?, ?>) Items.XSTREAM2.fromXML(Items.XSTREAM2.toXML(property));
+
+            assertThat(loaded.getBranch().getSourceId(), is(property.getBranch().getSourceId()));
+            assertThat(loaded.getBranch().getHead(), is(property.getBranch().getHead()));
+            assertThat(loaded.getBranch(), not(instanceOf(Branch.Dead.class)));
+            assertThat(loaded.getTemplateRevision(), is(property.getTemplateRevision()));
+            assertThat(loaded.isKept(), is(false));
+        }
+    }
+
+    @Test
+    public void given_deadKeptBranch_when_writingAndReading_then_branchStateIsKept() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject master = prj.getItem("master");
+            Branch branch = master.getProperty(BranchProjectProperty.class).getBranch();
+            BranchProjectProperty<?, ?> property = new BranchProjectProperty<>(
+                    new Branch.Dead(branch.getHead(), branch.getProperties()));
+            property.setKept(true);
+            property.setTemplateRevision("0123456789abcdef");
+
+            BranchProjectProperty<?, ?> loaded =
+                    (BranchProjectProperty<?, ?>) Items.XSTREAM2.fromXML(Items.XSTREAM2.toXML(property));
+
+            assertThat(loaded.getBranch(), instanceOf(Branch.Dead.class));
+            assertThat(loaded.getBranch().getHead().getName(), is("master"));
+            assertThat(loaded.isKept(), is(true));
+            assertThat(loaded.getTemplateRevision(), is("0123456789abcdef"));
+        }
+    }
+
+    @Test
+    public void given_branchReadBeforeOwnerIsSet_when_ownerIsSet_then_branchIsRebuiltWithItsScm() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject master = prj.getItem("master");
+            BranchProjectProperty<?, ?> loaded = (BranchProjectProperty<?, ?>) Items.XSTREAM2.fromXML(
+                    Items.XSTREAM2.toXML(master.getProperty(BranchProjectProperty.class)));
+            assertThat(loaded.getBranch().getScm(), instanceOf(NullSCM.class));
+
+            master.removeProperty(BranchProjectProperty.class);
+            master.addProperty(loaded);
+
+            assertThat(loaded.getBranch().getScm(), not(instanceOf(NullSCM.class)));
+            assertThat(loaded.getBranch().getScm(), sameInstance(master.getScm()));
+        }
+    }
+}
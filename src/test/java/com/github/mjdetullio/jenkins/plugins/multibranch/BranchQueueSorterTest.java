@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.TopLevelItem;
+import java.util.List;
+import jenkins.branch.BranchSource;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class BranchQueueSorterTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+        r.jenkins.getQueue().clear();
+    }
+
+    @Test
+    public void given_jenkinsStarted_when_readingSorter_then_branchQueueSorterIsInstalled() throws Exception {
+        assertThat(r.jenkins.getQueue().getSorter(), instanceOf(BranchQueueSorter.class));
+    }
+
+    @Test
+    public void given_sorterReplaced_when_reinstalling_then_replacementIsWrapped() throws Exception {
+        r.jenkins.getQueue().setSorter(null);
+
+        r.jenkins.getExtensionList(PeriodicWork.class).get(BranchQueueSorter.Reinstaller.class).run();
+
+        assertThat(r.jenkins.getQueue().getSorter(), instanceOf(BranchQueueSorter.class));
+    }
+
+    @Test
+    public void given_priorityBranchQueuedLast_when_sorting_then_itIsBuildableFirst() throws Exception {
+        int executors = r.jenkins.getNumExecutors();
+        r.jenkins.setNumExecutors(0);
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature-1");
+            c.cloneBranch("foo", "master", "feature-2");
+            c.cloneBranch("foo", "master", "release");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.setPriorityBranches("release");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+
+            Queue queue = r.jenkins.getQueue();
+            long deadline = System.currentTimeMillis() + 60000L;
+            while (queue.getBuildableItems().size() < 4 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100L);
+                queue.maintain();
+            }
+            queue.maintain();
+            List<Queue.BuildableItem> buildables = queue.getBuildableItems();
+
+            assertThat(buildables, hasSize(4));
+            assertThat(buildables.get(0).task, is((Queue.Task) prj.getItem("release")));
+        } finally {
+            r.jenkins.getQueue().clear();
+            r.jenkins.setNumExecutors(executors);
+        }
+    }
+}
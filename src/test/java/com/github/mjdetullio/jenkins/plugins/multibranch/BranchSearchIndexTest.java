@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class BranchSearchIndexTest {
+
+    private BranchSearchIndex index;
+
+    @Before
+    public void setUp() {
+        index = new BranchSearchIndex();
+        index.put("master", null);
+        index.put("feature%2Flogin", "feature/login");
+        index.put("feature%2Flogout", "feature/logout");
+        index.put("release-1.0", "Release 1.0");
+    }
+
+    @Test
+    public void given_prefixAndSubstringMatches_when_searching_then_prefixMatchesComeFirst() {
+        index.put("hotfix-master", null);
+        assertThat(index.search("mas", 10), contains("master", "hotfix-master"));
+    }
+
+    @Test
+    public void given_query_when_searching_then_substringsOfNameOrDisplayNameMatch() {
+        assertThat(index.search("log", 10), contains("feature%2Flogin", "feature%2Flogout"));
+        assertThat(index.search("/logo", 10), contains("feature%2Flogout"));
+        assertThat(index.search("SE 1", 10), contains("release-1.0"));
+    }
+
+    @Test
+    public void given_shortQuery_when_searching_then_allTermsAreScanned() {
+        assertThat(index.search("r", 10), containsInAnyOrder(
+                "master", "feature%2Flogin", "feature%2Flogout", "release-1.0"));
+        assertThat(index.search("1.", 10), contains("release-1.0"));
+    }
+
+    @Test
+    public void given_limitOrBlankQuery_when_searching_then_resultsAreLimited() {
+        assertThat(index.search("e", 2), hasSize(2));
+        assertThat(index.search("e", 0), is(empty()));
+        assertThat(index.search("  ", 10), is(empty()));
+    }
+
+    @Test
+    public void given_removedOrRenamedBranch_when_searching_then_oldNamesNoLongerMatch() {
+        index.remove("master");
+        assertThat(index.search("master", 10), is(empty()));
+
+        index.put("release-1.0", "Release 2.0");
+        assertThat(index.search("1.0", 10), contains("release-1.0"));
+        assertThat(index.search("2.0", 10), contains("release-1.0"));
+        assertThat(index.search("release 1", 10), is(empty()));
+    }
+}
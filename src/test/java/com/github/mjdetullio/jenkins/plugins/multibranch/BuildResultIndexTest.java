@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleProject;
+import hudson.model.TopLevelItem;
+import hudson.tasks.Shell;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import jenkins.branch.BranchSource;
+import jenkins.scm.api.SCMRevision;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMRevision;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.TestExtension;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class BuildResultIndexTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void given_twoBranchesAtOneCommit_when_indexed_then_oneBuildRuns() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.setReuseBuildResults(true);
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject master = prj.getItem("master");
+            assertThat(master.getBuildByNumber(1), notNullValue());
+
+            c.cloneBranch("foo", "master", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            FreeStyleProject feature = prj.getItem("feature");
+            assertThat(feature, notNullValue());
+            assertThat("The feature branch reuses the build of master", feature.getLastBuild(), nullValue());
+            assertThat(master.getLastBuild().getNumber(), is(1));
+            assertThat(prj.getBuildResultIndex().getReuse("feature").getBranch(), is("master"));
+            assertThat(prj.getBuildResultIndex().getReuse("feature").getNumber(), is(1));
+            assertThat(prj.getStatusIndex().peek("feature").getColor(), is(master.getLastBuild().getIconColor()));
+        }
+    }
+
+    @Test
+    public void given_templateChanged_when_branchAtBuiltCommit_then_itBuilds() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.setReuseBuildResults(true);
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            prj.getTemplate().getBuildersList().add(new Shell("echo changed"));
+            prj.getTemplate().save();
+            c.cloneBranch("foo", "master", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            FreeStyleProject feature = prj.getItem("feature");
+            assertThat(feature.getBuildByNumber(1), notNullValue());
+            assertThat(prj.getBuildResultIndex().getReuse("feature"), nullValue());
+        }
+    }
+
+    @Test
+    public void given_templateChangedDuringBuild_when_branchAtBuiltCommit_then_itBuilds() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.setReuseBuildResults(true);
+            prj.getTemplate().getBuildersList().add(new Gate());
+            prj.getTemplate().save();
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            Gate.reset();
+            prj.scheduleBuild2(0).getFuture().get();
+            assertThat("master is building", Gate.ENTERED.await(60L, TimeUnit.SECONDS), is(true));
+
+            prj.getTemplate().getBuildersList().add(new Shell("echo changed"));
+            prj.getTemplate().save();
+            Gate.RELEASED.countDown();
+            r.waitUntilNoActivity();
+            assertThat(prj.getItem("master").getBuildByNumber(1), notNullValue());
+
+            c.cloneBranch("foo", "master", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            FreeStyleProject feature = prj.getItem("feature");
+            assertThat("master built the old template", feature.getBuildByNumber(1), notNullValue());
+            assertThat(prj.getBuildResultIndex().getReuse("feature"), nullValue());
+        }
+    }
+
+    @Test
+    public void given_originBuildDeleted_when_branchAtSameCommit_then_itBuilds() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.setReuseBuildResults(true);
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            prj.getItem("master").getBuildByNumber(1).delete();
+
+            c.cloneBranch("foo", "master", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            FreeStyleProject feature = prj.getItem("feature");
+            assertThat(feature.getBuildByNumber(1), notNullValue());
+            assertThat(prj.getBuildResultIndex().getReuse("feature"), nullValue());
+        }
+    }
+
+    /**
+     * Holds the first build that runs it until released.
+     */
+    public static final class Gate extends TestBuilder {
+        static CountDownLatch ENTERED;
+        static CountDownLatch RELEASED;
+
+        static void reset() {
+            ENTERED = new CountDownLatch(1);
+            RELEASED = new CountDownLatch(1);
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException {
+            ENTERED.countDown();
+            RELEASED.await();
+            return true;
+        }
+    }
+
+    /**
+     * Mock commits are content-addressed like Git commits.
+     */
+    @TestExtension
+    public static final class MockRevisionHash extends RevisionHash {
+        @CheckForNull
+        @Override
+        public String hashOf(@Nonnull SCMRevision revision) {
+            return revision instanceof MockSCMRevision ? ((MockSCMRevision) revision).getHash() : null;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleProject;
+import hudson.model.TopLevelItem;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.branch.BranchSource;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrentBuildCapTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+        r.jenkins.setNumExecutors(4);
+        ConcurrencyProbe.reset();
+    }
+
+    @Test
+    public void given_capOfOne_when_branchesBuild_then_oneBuildRunsAtATime() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature-1");
+            c.cloneBranch("foo", "master", "feature-2");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getTemplate().getBuildersList().add(new ConcurrencyProbe());
+            prj.getTemplate().save();
+            prj.setMaxConcurrentBuilds(1);
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            assertThat(prj.getItems(), hasSize(3));
+            for (FreeStyleProject branch : prj.getItems()) {
+                assertThat("The cap only delays " + branch.getName(), branch.getBuildByNumber(1), notNullValue());
+            }
+            assertThat(ConcurrencyProbe.PEAK.get(), is(1));
+            assertThat("Finalized builds free their slots", prj.getBuildSlots().getUsed(), is(0));
+            assertThat("Started builds are no longer pending", prj.getBuildSlots().getPending(), is(0));
+        }
+    }
+
+    @Test
+    public void given_capOfTwo_when_branchesBuild_then_atMostTwoBuildsRunAtOnce() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature-1");
+            c.cloneBranch("foo", "master", "feature-2");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getTemplate().getBuildersList().add(new ConcurrencyProbe());
+            prj.getTemplate().save();
+            prj.setMaxConcurrentBuilds(2);
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            for (FreeStyleProject branch : prj.getItems()) {
+                assertThat("The cap only delays " + branch.getName(), branch.getBuildByNumber(1), notNullValue());
+            }
+            assertThat(ConcurrencyProbe.PEAK.get(), lessThanOrEqualTo(2));
+            assertThat("Finalized builds free their slots", prj.getBuildSlots().getUsed(), is(0));
+            assertThat("Started builds are no longer pending", prj.getBuildSlots().getPending(), is(0));
+        }
+    }
+
+    /**
+     * Records how many builds run it at the same time.
+     */
+    public static final class ConcurrencyProbe extends TestBuilder {
+        static final AtomicInteger RUNNING = new AtomicInteger();
+        static final AtomicInteger PEAK = new AtomicInteger();
+
+        static void reset() {
+            RUNNING.set(0);
+            PEAK.set(0);
+        }
+
+        @Override
+        public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+                throws InterruptedException {
+            int now = RUNNING.incrementAndGet();
+            try {
+                int seen;
+                do {
+                    seen = PEAK.get();
+                } while (now > seen && !PEAK.compareAndSet(seen, now));
+                Thread.sleep(500L);
+                return true;
+            } finally {
+                RUNNING.decrementAndGet();
+            }
+        }
+    }
+}
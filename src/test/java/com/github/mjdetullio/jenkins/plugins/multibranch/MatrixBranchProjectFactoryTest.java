@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.matrix.AxisList;
+import hudson.matrix.MatrixBuild;
+import hudson.matrix.MatrixConfiguration;
+import hudson.matrix.MatrixProject;
+import hudson.matrix.TextAxis;
+import hudson.model.TopLevelItem;
+import hudson.tasks.Shell;
+import jenkins.branch.BranchSource;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class MatrixBranchProjectFactoryTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void given_templateBuilderChanged_when_decorating_then_configurationsAreKeptAndSeeTheBuilder()
+            throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            MatrixMultiBranchProject prj = r.jenkins.createProject(MatrixMultiBranchProject.class, "foo");
+            prj.getTemplate().setAxes(new AxisList(new TextAxis("x", "a", "b")));
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            MatrixProject master = prj.getItem("master");
+            MatrixConfiguration a = master.getItem("x=a");
+            assertThat(a, notNullValue());
+
+            prj.getTemplate().getBuildersList().add(new Shell("echo template-changed"));
+            prj.getTemplate().save();
+            prj.getProjectFactory().decorate(master);
+
+            assertThat(master.getBuildersList().get(Shell.class), notNullValue());
+            assertThat("The configurations were not reloaded", master.getItem("x=a"), sameInstance(a));
+            assertThat(a.getBuildersList().get(Shell.class), notNullValue());
+
+            MatrixBuild build = r.buildAndAssertSuccess(master);
+            r.assertLogContains("template-changed", build.getExactRun(a));
+        }
+    }
+
+    @Test
+    public void given_templateAxesChanged_when_decorating_then_configurationsAreRebuilt() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            MatrixMultiBranchProject prj = r.jenkins.createProject(MatrixMultiBranchProject.class, "foo");
+            prj.getTemplate().setAxes(new AxisList(new TextAxis("x", "a", "b")));
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            MatrixProject master = prj.getItem("master");
+
+            prj.getTemplate().setAxes(new AxisList(new TextAxis("x", "a", "b", "c")));
+            prj.getProjectFactory().decorate(master);
+
+            assertThat(master.getItem("x=c"), notNullValue());
+            assertThat(master.getActiveConfigurations(), hasSize(3));
+        }
+    }
+
+    @Test
+    public void given_lazyConfigurationsCreatedButNeverBuilt_when_decorating_then_configurationsAreKept()
+            throws Exception {
+        int executors = r.jenkins.getNumExecutors();
+        r.jenkins.setNumExecutors(0);
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            MatrixMultiBranchProject prj = r.jenkins.createProject(MatrixMultiBranchProject.class, "foo");
+            prj.setLazyConfigurations(true);
+            prj.getTemplate().setAxes(new AxisList(new TextAxis("x", "a", "b")));
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            MatrixProject master = prj.getItem("master");
+            while (master.getItem("x=a") == null) {
+                Thread.sleep(100);
+            }
+            r.jenkins.getQueue().cancel(master);
+            MatrixConfiguration a = master.getItem("x=a");
+
+            prj.getTemplate().getBuildersList().add(new Shell("echo template-changed"));
+            prj.getTemplate().save();
+            prj.getProjectFactory().decorate(master);
+
+            assertThat(master.getAxes(), hasSize(1));
+            assertThat("The configurations were thrown away", master.getItem("x=a"), sameInstance(a));
+        } finally {
+            r.jenkins.getQueue().clear();
+            r.jenkins.setNumExecutors(executors);
+        }
+    }
+}
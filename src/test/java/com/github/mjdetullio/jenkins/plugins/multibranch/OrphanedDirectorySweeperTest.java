@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+import hudson.model.TopLevelItem;
+import java.io.File;
+import jenkins.branch.BranchSource;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class OrphanedDirectorySweeperTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void given_branchWithFancyName_when_sweeping_then_branchDirectoryIsKept() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature/jenkins-41867");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            prj.setSweepOrphanedDirectories(true);
+            File leftover = mkdir(prj, "leftover");
+            File broken = mkdir(prj, "broken");
+            assertThat(new File(broken, "config.xml").createNewFile(), is(true));
+            age(prj);
+
+            sweeper().execute(TaskListener.NULL);
+
+            assertThat("The leftover directory was swept", leftover.exists(), is(false));
+            assertThat("Directories holding a configuration are kept", broken.isDirectory(), is(true));
+            assertThat(prj.getItems(), hasSize(2));
+            for (FreeStyleProject branch : prj.getItems()) {
+                assertThat("The directory of " + branch.getName() + " is kept",
+                        branch.getRootDir().isDirectory(), is(true));
+                assertThat("The builds of " + branch.getName() + " are kept",
+                        branch.getBuildByNumber(1), notNullValue());
+            }
+        }
+    }
+
+    @Test
+    public void given_sweepingNotEnabled_when_sweeping_then_nothingIsMoved() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature/jenkins-41867");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            File leftover = mkdir(prj, "leftover");
+            age(prj);
+
+            sweeper().execute(TaskListener.NULL);
+
+            assertThat("Sweeping is opt-in", leftover.isDirectory(), is(true));
+        }
+    }
+
+    private static File mkdir(FreeStyleMultiBranchProject prj, String name) {
+        File dir = new File(prj.getJobsDir(), name);
+        assertThat(dir.mkdirs(), is(true));
+        return dir;
+    }
+
+    private static void age(FreeStyleMultiBranchProject prj) {
+        File[] dirs = prj.getJobsDir().listFiles();
+        assertThat(dirs, notNullValue());
+        for (File dir : dirs) {
+            assertThat(dir.setLastModified(0L), is(true));
+        }
+    }
+
+    private static OrphanedDirectorySweeper sweeper() {
+        return r.jenkins.getExtensionList(AsyncPeriodicWork.class).get(OrphanedDirectorySweeper.class);
+    }
+}
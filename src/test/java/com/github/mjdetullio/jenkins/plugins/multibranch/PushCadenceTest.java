@@ -0,0 +1,95 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class PushCadenceTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toMillis(1);
+
+    @Test
+    public void given_noOrOneEvent_when_computingQuietPeriod_then_lowerBoundApplies() {
+        PushCadence cadence = new PushCadence();
+        assertEquals(5, cadence.quietPeriod(5, 300));
+        cadence.record(0L);
+        assertEquals(5, cadence.quietPeriod(5, 300));
+    }
+
+    @Test
+    public void given_burstOfEvents_when_computingQuietPeriod_then_twiceMedianIntervalApplies() {
+        PushCadence cadence = new PushCadence();
+        cadence.record(0L);
+        cadence.record(20 * SECOND);
+        cadence.record(50 * SECOND);
+        cadence.record(90 * SECOND);
+
+        // Intervals 20, 30 and 40 seconds
+        assertEquals(60, cadence.quietPeriod(5, 300));
+        assertEquals(45, cadence.quietPeriod(5, 45));
+        assertEquals(80, cadence.quietPeriod(80, 300));
+    }
+
+    @Test
+    public void given_isolatedEvent_when_computingQuietPeriod_then_lowerBoundApplies() {
+        PushCadence cadence = new PushCadence();
+        cadence.record(0L);
+        cadence.record(10 * SECOND);
+        cadence.record(20 * SECOND);
+        cadence.record(2000 * SECOND);
+        assertEquals(5, cadence.quietPeriod(5, 300));
+
+        // A new burst ignores the long interval that separated it from the last one
+        cadence.record(2010 * SECOND);
+        assertEquals(20, cadence.quietPeriod(5, 300));
+    }
+
+    @Test
+    public void given_events_when_computingQuietUntil_then_lastEventPlusQuietPeriodApplies() {
+        PushCadence cadence = new PushCadence();
+        assertEquals(0L, cadence.quietUntil(5, 300));
+
+        cadence.record(100 * SECOND);
+        assertEquals(105 * SECOND, cadence.quietUntil(5, 300));
+
+        // A push during the quiet period extends it
+        cadence.record(120 * SECOND);
+        assertEquals(160 * SECOND, cadence.quietUntil(5, 300));
+    }
+
+    @Test
+    public void given_copiedCadence_when_computingQuietPeriod_then_historyIsKept() {
+        PushCadence cadence = new PushCadence();
+        cadence.record(0L);
+        cadence.record(30 * SECOND);
+
+        PushCadence copy = new PushCadence();
+        copy.copyFrom(cadence);
+        assertEquals(60, copy.quietPeriod(5, 300));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.XmlFile;
+import hudson.model.FreeStyleProject;
+import hudson.model.Saveable;
+import hudson.model.TopLevelItem;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Shell;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import jenkins.branch.Branch;
+import jenkins.branch.BranchSource;
+import jenkins.branch.DefaultOrphanedItemStrategy;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestExtension;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TemplatePropagationTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void given_propagationRunning_when_submittingSeveralTimes_then_oneMorePropagationRuns() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject master = prj.getItem("master");
+            TemplatePropagation propagation = prj.getTemplatePropagation();
+            SaveCounter.watch(master);
+
+            synchronized (master) {
+                propagation.request();
+                awaitBlockedOn(master, 1);
+                for (int i = 0; i < 4; i++) {
+                    prj.getTemplate().getBuildersList().add(new Shell("echo submit-" + i));
+                    prj.getTemplate().save();
+                    propagation.request();
+                }
+            }
+            awaitPropagated(propagation);
+
+            assertThat("The running propagation and one coalesced rerun", SaveCounter.SAVES.get(), is(2));
+            assertThat(master.getBuildersList().getAll(Shell.class), hasSize(4));
+        }
+    }
+
+    @Test
+    public void given_propagationPending_when_indexingChangesBranch_then_bothChangesAreKept() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.setOrphanedItemStrategy(new DefaultOrphanedItemStrategy(false, "", ""));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject feature = prj.getItem("feature");
+            TemplatePropagation propagation = prj.getTemplatePropagation();
+
+            Future<?> indexing;
+            synchronized (feature) {
+                prj.getTemplate().getBuildersList().add(new Shell("echo propagated"));
+                prj.getTemplate().save();
+                propagation.request();
+                awaitBlockedOn(feature, 1);
+
+                c.deleteBranch("foo", "feature");
+                indexing = prj.scheduleBuild2(0).getFuture();
+                awaitBlockedOn(feature, 2);
+            }
+            indexing.get();
+            awaitPropagated(propagation);
+            r.waitUntilNoActivity();
+
+            assertThat(prj.getProjectFactory().getBranch(feature), instanceOf(Branch.Dead.class));
+            assertThat(feature.getBuildersList().get(Shell.class), notNullValue());
+            String xml = feature.getConfigFile().asString();
+            assertThat(xml, containsString("<dead>"));
+            assertThat(xml, containsString("echo propagated"));
+        }
+    }
+
+    private static void awaitBlockedOn(Object lock, int threads) throws InterruptedException {
+        int hash = System.identityHashCode(lock);
+        for (long deadline = System.currentTimeMillis() + 60000L; System.currentTimeMillis() < deadline; ) {
+            int blocked = 0;
+            for (ThreadInfo info : ManagementFactory.getThreadMXBean().dumpAllThreads(false, false)) {
+                if (info.getThreadState() == Thread.State.BLOCKED && info.getLockInfo() != null
+                        && info.getLockInfo().getIdentityHashCode() == hash) {
+                    blocked++;
+                }
+            }
+            if (blocked >= threads) {
+                return;
+            }
+            Thread.sleep(50L);
+        }
+        throw new AssertionError("Expected " + threads + " threads waiting to update " + lock);
+    }
+
+    private static void awaitPropagated(TemplatePropagation propagation) throws InterruptedException {
+        for (long deadline = System.currentTimeMillis() + 60000L; propagation.isPending(); ) {
+            assertThat("The propagation finishes", System.currentTimeMillis() < deadline, is(true));
+            Thread.sleep(50L);
+        }
+    }
+
+    /**
+     * Counts the saves of one branch project.
+     */
+    @TestExtension("given_propagationRunning_when_submittingSeveralTimes_then_oneMorePropagationRuns")
+    public static final class SaveCounter extends SaveableListener {
+        static final AtomicInteger SAVES = new AtomicInteger();
+        static volatile Saveable watched;
+
+        static void watch(Saveable saveable) {
+            SAVES.set(0);
+            watched = saveable;
+        }
+
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o == watched) {
+                SAVES.incrementAndGet();
+            }
+        }
+    }
+}
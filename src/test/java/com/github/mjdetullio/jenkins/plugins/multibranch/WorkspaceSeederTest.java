@@ -0,0 +1,97 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2017, Matthew DeTullio
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.github.mjdetullio.jenkins.plugins.multibranch;
+
+import hudson.FilePath;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TopLevelItem;
+import jenkins.branch.BranchSource;
+import jenkins.scm.impl.mock.MockSCMController;
+import jenkins.scm.impl.mock.MockSCMSource;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import static org.hamcrest.Matchers.*;
+import static org.junit.Assert.assertThat;
+
+public class WorkspaceSeederTest {
+    @ClassRule
+    public static JenkinsRule r = new JenkinsRule();
+
+    @Before
+    public void cleanOutAllItems() throws Exception {
+        for (TopLevelItem i : r.getInstance().getItems()) {
+            i.delete();
+        }
+    }
+
+    @Test
+    public void given_newBranch_when_firstBuild_then_workspaceIsSeeded() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            ((TemplateDrivenBranchProjectFactory<?, ?>) prj.getProjectFactory()).setSeedWorkspaceFrom("master");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FilePath seed = r.jenkins.getWorkspaceFor(prj.getItem("master"));
+            seed.child("seeded.txt").write("from master", "UTF-8");
+
+            c.cloneBranch("foo", "master", "feature");
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+
+            FreeStyleBuild build = prj.getItem("feature").getBuildByNumber(1);
+            assertThat(build, notNullValue());
+            r.assertLogContains("Seeded workspace from", build);
+            assertThat(build.getWorkspace().child("seeded.txt").exists(), is(true));
+        }
+    }
+
+    @Test
+    public void given_wipedOutWorkspace_when_building_then_workspaceIsNotSeeded() throws Exception {
+        try (MockSCMController c = MockSCMController.create()) {
+            c.createRepository("foo");
+            c.cloneBranch("foo", "master", "feature");
+            FreeStyleMultiBranchProject prj = r.jenkins.createProject(FreeStyleMultiBranchProject.class, "foo");
+            ((TemplateDrivenBranchProjectFactory<?, ?>) prj.getProjectFactory()).setSeedWorkspaceFrom("master");
+            prj.getSourcesList().add(new BranchSource(new MockSCMSource(null, c, "foo", true, false, false)));
+            prj.scheduleBuild2(0).getFuture().get();
+            r.waitUntilNoActivity();
+            FreeStyleProject feature = prj.getItem("feature");
+            assertThat(feature.getBuildByNumber(1), notNullValue());
+            r.jenkins.getWorkspaceFor(prj.getItem("master")).child("seeded.txt").write("from master", "UTF-8");
+
+            FilePath workspace = r.jenkins.getWorkspaceFor(feature);
+            workspace.deleteRecursive();
+            FreeStyleBuild build = r.buildAndAssertSuccess(feature);
+
+            r.assertLogNotContains("Seeded workspace from", build);
+            assertThat("A wiped out workspace stays clean", workspace.child("seeded.txt").exists(), is(false));
+        }
+    }
+}